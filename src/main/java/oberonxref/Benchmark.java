@@ -0,0 +1,340 @@
+package oberonxref;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class Benchmark {
+	public static void main(String[] args) throws Exception {
+		if (args.length == 1 && args[0].equals("comments")) {
+			benchmarkComments();
+		} else if (args.length == 2 && args[0].equals("parse")) {
+			benchmarkParse(new File(args[1]));
+		} else if (args.length == 2 && args[0].equals("cfg")) {
+			benchmarkControlFlow(new File(args[1]));
+		} else if (args.length == 2 && args[0].equals("disassemble")) {
+			benchmarkDisassemble(new File(args[1]));
+		} else if (args.length == 3 && args[0].equals("interpret") && args[2].matches("[A-Za-z0-9]+\\.[A-Za-z0-9]+")) {
+			benchmarkInterpret(new File(args[1]), args[2]);
+		} else if (args.length == 1 && args[0].equals("interleave")) {
+			benchmarkInterleave();
+		} else if (args.length == 2 && args[0].equals("export")) {
+			benchmarkExport(new File(args[1]), false);
+		} else if (args.length == 3 && args[0].equals("export") && args[1].equals("--compact")) {
+			benchmarkExport(new File(args[2]), true);
+		} else {
+			System.out.println("Usage: java -cp OberonXref.jar oberonxref.Benchmark comments");
+			System.out.println("       java -cp OberonXref.jar oberonxref.Benchmark parse <indir>");
+			System.out.println("       java -cp OberonXref.jar oberonxref.Benchmark export [--compact] <indir>");
+			System.out.println("       java -cp OberonXref.jar oberonxref.Benchmark disassemble <indir>");
+			System.out.println("       java -cp OberonXref.jar oberonxref.Benchmark cfg <indir>");
+			System.out.println("       java -cp OberonXref.jar oberonxref.Benchmark interpret <indir> <Module.Command>");
+			System.out.println("       java -cp OberonXref.jar oberonxref.Benchmark interleave");
+		}
+	}
+
+	private static void benchmarkComments() {
+		System.out.println("Comment lines      Bytes    Time [ms]    ns/byte");
+		for (int lines = 1000; lines <= 512000; lines *= 2) {
+			StringBuilder sb = new StringBuilder("MODULE Bench; (* license header\n");
+			for (int i = 0; i < lines; i++) {
+				sb.append("   line ").append(i).append(" of the (* nested *) license text\n");
+			}
+			sb.append("*)\nEND Bench.");
+			ByteBuffer code = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 10; round++) {
+				long start = System.nanoTime();
+				TokenBuffer tokens = new TokenBuffer(code, new Identifiers());
+				Scanner.scan(tokens);
+				best = Math.min(best, System.nanoTime() - start);
+				if (tokens.size() < 2 * lines)
+					throw new IllegalStateException("Comment lines not split");
+			}
+			System.out.println(String.format("%13d %10d %12.2f %10.2f", lines, code.limit(), best / 1e6, (double) best / code.limit()));
+		}
+	}
+
+	/**
+	 * Decode the largest object files of a directory and render all their
+	 * disassembly lines.
+	 */
+	private static void benchmarkDisassemble(File dir) throws Exception {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".rsc"));
+		Arrays.sort(files, (f1, f2) -> Long.compare(f2.length(), f1.length()));
+		System.out.println("Object file         Bytes  Instructions   Lines   Decode [ms]   Render [ms]");
+		StringBuilder sb = new StringBuilder();
+		for (File file : Arrays.copyOf(files, Math.min(files.length, 10))) {
+			long bestDecode = Long.MAX_VALUE, bestRender = Long.MAX_VALUE;
+			int lines = 0;
+			for (int round = 0; round < 20; round++) {
+				long start = System.nanoTime();
+				Disassembly disassembly = Disassembly.disassembly(file, true);
+				long decoded = System.nanoTime();
+				lines = 0;
+				for (int i = 0; i < disassembly.getInstructionCount(); i++) {
+					for (int j = 0; j < disassembly.getLineCount(i); j++) {
+						sb.setLength(0);
+						disassembly.appendLine(sb, i, j);
+						lines++;
+					}
+				}
+				long rendered = System.nanoTime();
+				bestDecode = Math.min(bestDecode, decoded - start);
+				bestRender = Math.min(bestRender, rendered - decoded);
+				if (round == 0)
+					System.out.print(String.format("%-16s %8d %13d", file.getName(), file.length(), disassembly.getInstructionCount()));
+			}
+			System.out.println(String.format(" %7d %13.2f %13.2f", lines, bestDecode / 1e6, bestRender / 1e6));
+		}
+	}
+
+	/**
+	 * Build the control flow graphs of all object files of a directory, after
+	 * decoding them once.
+	 */
+	private static void benchmarkControlFlow(File dir) throws Exception {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".rsc"));
+		List<Disassembly> disassemblies = new ArrayList<>();
+		for (File file : files) {
+			disassemblies.add(Disassembly.disassembly(file, true));
+		}
+		long best = Long.MAX_VALUE;
+		int instructions = 0, procedures = 0, blocks = 0, edges = 0;
+		for (int round = 0; round < 20; round++) {
+			long start = System.nanoTime();
+			instructions = procedures = blocks = edges = 0;
+			for (Disassembly disassembly : disassemblies) {
+				ControlFlowGraph cfg = disassembly.buildControlFlowGraph();
+				instructions += disassembly.getInstructionCount();
+				procedures += cfg.getProcedureCount();
+				blocks += cfg.getBlockCount();
+				for (int b = 0; b < cfg.getBlockCount(); b++) {
+					edges += cfg.getSuccessorCount(b);
+				}
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println(String.format("%d modules, %d instructions, %d procedures, %d blocks, %d edges in %.2f ms", files.length, instructions, procedures, blocks, edges, best / 1e6));
+	}
+
+	/**
+	 * Run a command of a module repeatedly, after loading it once, to
+	 * measure the interpreter loop.
+	 */
+	private static void benchmarkInterpret(File dir, String command) throws Exception {
+		Map<String, File> files = new HashMap<>();
+		for (File file : dir.listFiles((d, name) -> name.endsWith(".rsc"))) {
+			files.put(file.getName().substring(0, file.getName().length() - 4), file);
+		}
+		int dot = command.indexOf('.');
+		Risc5Interpreter interpreter = new Risc5Interpreter(8 << 20);
+		interpreter.setBodyStepLimit(10000000L);
+		interpreter.load(command.substring(0, dot), files);
+		double best = 0;
+		for (int round = 0; round < 10; round++) {
+			long steps = interpreter.getSteps(), start = System.nanoTime();
+			String reason = null;
+			while (reason == null && interpreter.getSteps() - steps < 100000000L) {
+				reason = interpreter.call(command.substring(0, dot), command.substring(dot + 1), 100000000L);
+			}
+			best = Math.max(best, (interpreter.getSteps() - steps) * 1e3 / (System.nanoTime() - start));
+			if (reason != null) {
+				System.out.println(command + ": " + reason);
+				break;
+			}
+		}
+		System.out.println(String.format("%.1f million instructions/s", best));
+	}
+
+	/**
+	 * Render synthetic modules with one instruction per token, to measure
+	 * the merge of source and disassembly.
+	 */
+	private static void benchmarkInterleave() throws Exception {
+		File outdir = Files.createTempDirectory("oberonxref-bench").toFile();
+		HTMLBuilder hb = new HTMLBuilder(outdir);
+		System.out.println("Instructions    Time [ms]    ns/instruction");
+		for (int instructions = 5000; instructions <= 160000; instructions *= 2) {
+			StringBuilder sb = new StringBuilder("MODULE Bench;\n");
+			for (int i = 0; i < instructions / 8; i++) {
+				sb.append("  x := x + a[i] * 2;\n");
+			}
+			sb.append("END Bench.");
+			TokenBuffer tokens = new TokenBuffer(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1)), new Identifiers());
+			Scanner.scan(tokens);
+			int[] opcodes = new int[instructions];
+			Arrays.fill(opcodes, 0x00100002); // MOV R0, R1, R2
+			Disassembly disassembly = new Disassembly(opcodes);
+			for (int i = 0; i < instructions; i++) {
+				// mostly ascending positions, with some jumps back like loops
+				int token = (i % 64 == 63 ? i / 2 : i) % tokens.size();
+				disassembly.codePositions[i] = tokens.getStart(token);
+			}
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 10; round++) {
+				long start = System.nanoTime();
+				hb.writeMainFile("Bench", tokens, disassembly);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println(String.format("%12d %12.2f %17.1f", instructions, best / 1e6, (double) best / instructions));
+		}
+		new File(outdir, "Bench.html").delete();
+		outdir.delete();
+	}
+
+	private static void benchmarkParse(File dir) throws Exception {
+		Map<String, ByteBuffer> sources = new HashMap<>();
+		Map<String, List<String>> importedModules = new HashMap<>();
+		Identifiers identifiers = new Identifiers();
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(".Mod.txt")) {
+				ByteBuffer code = Scanner.mapSource(f);
+				TokenBuffer tokens = new TokenBuffer(code, identifiers);
+				Scanner.scan(tokens);
+				List<String> imports = new ArrayList<>();
+				String modname = Parser.findImportedModules(tokens, imports);
+				sources.put(modname, code);
+				importedModules.put(modname, imports);
+			}
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println(sources.size() + " modules, " + cores + " available processors");
+		System.out.println("Threads    Time [ms]    Speedup");
+		for (int round = 0; round < 10; round++) {
+			parseOnce(sources, importedModules, 1);
+		}
+		long singleThreaded = 0;
+		for (int threads = 1; threads <= Math.max(cores, 4); threads *= 2) {
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 10; round++) {
+				best = Math.min(best, parseOnce(sources, importedModules, threads));
+			}
+			if (threads == 1)
+				singleThreaded = best;
+			System.out.println(String.format("%7d %12.2f %10.2f", threads, best / 1e6, (double) singleThreaded / best));
+		}
+	}
+
+	private static long parseOnce(Map<String, ByteBuffer> sources, Map<String, List<String>> importedModules, int threads) throws Exception {
+		Map<String, TokenBuffer> modules = new HashMap<>();
+		Identifiers identifiers = new Identifiers();
+		for (Map.Entry<String, ByteBuffer> e : sources.entrySet()) {
+			TokenBuffer tokens = new TokenBuffer(e.getValue(), identifiers);
+			Scanner.scan(tokens);
+			modules.put(e.getKey(), tokens);
+		}
+		Map<String, Scope> publicScopes = new ConcurrentHashMap<>();
+		ParallelParser.parseBuiltin("BUILTINS", publicScopes, identifiers);
+		ParallelParser.parseBuiltin("SYSTEM", publicScopes, identifiers);
+		long start = System.nanoTime();
+		new ParallelParser(modules, new ModuleGraph(importedModules, publicScopes.keySet()), publicScopes).parseAll(threads, false);
+		return System.nanoTime() - start;
+	}
+
+	private static void benchmarkExport(File dir, boolean compact) throws Exception {
+		Map<String, TokenBuffer> modules = new HashMap<>();
+		Map<String, List<String>> importedModules = new HashMap<>();
+		Map<String, File> rscFiles = new HashMap<>();
+		Identifiers identifiers = new Identifiers();
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(".Mod.txt")) {
+				TokenBuffer tokens = new TokenBuffer(Scanner.mapSource(f), identifiers);
+				Scanner.scan(tokens);
+				List<String> imports = new ArrayList<>();
+				String modname = Parser.findImportedModules(tokens, imports);
+				modules.put(modname, tokens);
+				importedModules.put(modname, imports);
+				File rscFile = new File(dir, modname + ".rsc");
+				if (rscFile.exists())
+					rscFiles.put(modname, rscFile);
+			}
+		}
+		Map<String, Scope> publicScopes = new ConcurrentHashMap<>();
+		ParallelParser.parseBuiltin("BUILTINS", publicScopes, identifiers);
+		ParallelParser.parseBuiltin("SYSTEM", publicScopes, identifiers);
+		new ParallelParser(modules, new ModuleGraph(importedModules, publicScopes.keySet()), publicScopes).parseAll(1, false);
+		Map<String, Map<String, Set<String>>> usageRefs = new HashMap<>();
+		for (Map.Entry<String, TokenBuffer> e : modules.entrySet()) {
+			TokenBuffer tokens = e.getValue();
+			for (int i = 0; i < tokens.size(); i++) {
+				String link = tokens.getLink(i);
+				if (link != null && link.contains(".html#") && !link.contains("-usage.html#")) {
+					String[] parts = link.split("\\.html#");
+					usageRefs.computeIfAbsent(parts[0], m -> new HashMap<>()).computeIfAbsent(parts[1], x -> new HashSet<>()).add(e.getKey() + ".html");
+				}
+			}
+		}
+		long callGraphStart = System.nanoTime();
+		BuildManifest manifest = new BuildManifest();
+		for (String module : modules.keySet()) {
+			BuildManifest.ModuleEntry entry = new BuildManifest.ModuleEntry("-", "-");
+			if (rscFiles.containsKey(module))
+				CallGraph.collectCalls(module, modules.get(module), Disassembly.disassembly(rscFiles.get(module), true), entry);
+			manifest.putModule(module, entry);
+		}
+		long callGraphBuild = System.nanoTime();
+		CallGraph callGraph = new CallGraph(manifest);
+		System.out.println(String.format("Calls collected in %.2f ms, call graph of %d procedures built in %.2f ms", (callGraphBuild - callGraphStart) / 1e6, callGraph.getProcedureCount(),
+				(System.nanoTime() - callGraphBuild) / 1e6));
+		File outdir = Files.createTempDirectory("oberonxref-bench").toFile();
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println(modules.size() + " modules, " + cores + " available processors");
+		System.out.println("Threads    Time [ms]    Pages/s       MB/s");
+		for (int round = 0; round < 3; round++) {
+			exportOnce(outdir, modules, rscFiles, usageRefs, callGraph, 1, compact);
+		}
+		for (int threads = 1; threads <= Math.max(cores, 4); threads *= 2) {
+			long best = Long.MAX_VALUE;
+			HTMLBuilder hb = null;
+			for (int round = 0; round < 5; round++) {
+				long start = System.nanoTime();
+				HTMLBuilder current = exportOnce(outdir, modules, rscFiles, usageRefs, callGraph, threads, compact);
+				long time = System.nanoTime() - start;
+				if (time < best) {
+					best = time;
+					hb = current;
+				}
+			}
+			System.out.println(String.format("%7d %12.2f %10.1f %10.2f", threads, best / 1e6, hb.getPagesWritten() / (best / 1e9), hb.getBytesWritten() / 1048576.0 / (best / 1e9)));
+		}
+		for (File f : outdir.listFiles()) {
+			f.delete();
+		}
+		outdir.delete();
+	}
+
+	private static HTMLBuilder exportOnce(File outdir, Map<String, TokenBuffer> modules, Map<String, File> rscFiles, Map<String, Map<String, Set<String>>> usageRefs, CallGraph callGraph, int threads, boolean compact) throws Exception {
+		HTMLBuilder hb = new HTMLBuilder(outdir, compact);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> pages = new ArrayList<>();
+			for (String module : modules.keySet()) {
+				pages.add(executor.submit(() -> {
+					File rscFile = rscFiles.get(module);
+					hb.writeMainFile(module, modules.get(module), rscFile == null ? null : Disassembly.disassembly(rscFile, true));
+					hb.writeUsageFile(module, usageRefs.getOrDefault(module, new HashMap<>()), callGraph);
+					return null;
+				}));
+			}
+			for (Future<?> page : pages) {
+				page.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return hb;
+	}
+}
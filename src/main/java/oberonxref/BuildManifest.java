@@ -0,0 +1,297 @@
+package oberonxref;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Record of a previous run, stored in the output directory for incremental
+ * regeneration. For every module it contains the key of its symbol file
+ * (which covers its source and the interfaces of its imports), a hash of its
+ * .rsc file, all links it defines or references, the calls found in its code
+ * and a hash of its usage page. The output options are recorded as well.
+ */
+public class BuildManifest {
+
+	public static final String FILE_NAME = "oberonxref.manifest";
+	private static final String HEADER = "OberonXref manifest 3";
+
+	private final Map<String, ModuleEntry> modules = new TreeMap<>();
+	private String options = null, indexHash = null;
+
+	public static BuildManifest read(File file) throws IOException {
+		BuildManifest result = new BuildManifest();
+		if (!file.exists())
+			return result;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			if (!HEADER.equals(br.readLine()))
+				return result;
+			ModuleEntry entry = null;
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] parts = line.split(" ", 2);
+				switch (parts[0]) {
+				case "module":
+					String[] fields = parts[1].split(" ");
+					entry = new ModuleEntry(fields[1], fields[2]);
+					entry.usageHash = fields[3];
+					result.modules.put(fields[0], entry);
+					break;
+				case "anchor":
+					entry.anchors.add(parts[1]);
+					break;
+				case "usage":
+					entry.usageLinks.add(parts[1]);
+					break;
+				case "ref":
+					entry.references.add(parts[1]);
+					break;
+				case "procedure":
+					entry.procedures.add(parts[1]);
+					break;
+				case "import":
+					entry.imports.add(parts[1]);
+					break;
+				case "calls":
+					entry.calls = parseInts(parts[1]);
+					break;
+				case "exports":
+					entry.exports = parseInts(parts[1]);
+					break;
+				case "options":
+					result.options = parts[1];
+					break;
+				case "index":
+					result.indexHash = parts[1];
+					break;
+				default:
+					throw new IOException("Invalid manifest line: " + line);
+				}
+			}
+		}
+		return result;
+	}
+
+	public void write(File file) throws IOException {
+		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			bw.write(HEADER + "\n");
+			bw.write("options " + options + "\n");
+			for (Map.Entry<String, ModuleEntry> e : modules.entrySet()) {
+				ModuleEntry entry = e.getValue();
+				bw.write("module " + e.getKey() + " " + entry.key + " " + entry.rscHash + " " + entry.usageHash + "\n");
+				for (String anchor : entry.anchors)
+					bw.write("anchor " + anchor + "\n");
+				for (String usageLink : entry.usageLinks)
+					bw.write("usage " + usageLink + "\n");
+				for (String reference : entry.references)
+					bw.write("ref " + reference + "\n");
+				for (String procedure : entry.procedures)
+					bw.write("procedure " + procedure + "\n");
+				for (String imp : entry.imports)
+					bw.write("import " + imp + "\n");
+				writeInts(bw, "calls", entry.calls);
+				writeInts(bw, "exports", entry.exports);
+			}
+			bw.write("index " + indexHash + "\n");
+		}
+	}
+
+	private static int[] parseInts(String line) {
+		String[] fields = line.split(" ");
+		int[] result = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			result[i] = Integer.parseInt(fields[i]);
+		}
+		return result;
+	}
+
+	private static void writeInts(BufferedWriter bw, String name, int[] values) throws IOException {
+		if (values.length == 0)
+			return;
+		bw.write(name);
+		for (int value : values) {
+			bw.write(" " + value);
+		}
+		bw.write("\n");
+	}
+
+	public Set<String> getModules() {
+		return modules.keySet();
+	}
+
+	public ModuleEntry getModule(String module) {
+		return modules.get(module);
+	}
+
+	public void putModule(String module, ModuleEntry entry) {
+		modules.put(module, entry);
+	}
+
+	/**
+	 * Output options of the run; all pages depend on them.
+	 */
+	public String getOptions() {
+		return options;
+	}
+
+	public void setOptions(String options) {
+		this.options = options;
+	}
+
+	public String getIndexHash() {
+		return indexHash;
+	}
+
+	public void setIndexHash(String indexHash) {
+		this.indexHash = indexHash;
+	}
+
+	public static String hashFile(File file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer content = ch.map(MapMode.READ_ONLY, 0, ch.size());
+			MessageDigest md = SymbolFileCache.newDigest();
+			md.update(content);
+			return SymbolFileCache.toHex(md.digest());
+		}
+	}
+
+	/**
+	 * Hash the content of a usage page.
+	 */
+	public static String hashUsages(String module, Map<String, Set<String>> usageRefs, CallGraph callGraph) {
+		MessageDigest md = SymbolFileCache.newDigest();
+		for (String export : new TreeSet<>(usageRefs.keySet())) {
+			md.update(("\n" + export + ":").getBytes(StandardCharsets.UTF_8));
+			for (String usage : new TreeSet<>(usageRefs.get(export))) {
+				md.update((" " + usage).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		for (int p = callGraph.getFirstProcedure(module); p < callGraph.getProcedureCount() && callGraph.getModule(p).equals(module); p++) {
+			md.update(("\ncall " + callGraph.getAnchor(p) + ":").getBytes(StandardCharsets.UTF_8));
+			for (int i = 0; i < callGraph.getCalleeCount(p); i++) {
+				int callee = callGraph.getCallee(p, i);
+				md.update((" " + callGraph.getModule(callee) + "." + callGraph.getAnchor(callee)).getBytes(StandardCharsets.UTF_8));
+			}
+			md.update(" /".getBytes(StandardCharsets.UTF_8));
+			for (int i = 0; i < callGraph.getCallerCount(p); i++) {
+				int caller = callGraph.getCaller(p, i);
+				md.update((" " + callGraph.getModule(caller) + "." + callGraph.getAnchor(caller)).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return SymbolFileCache.toHex(md.digest());
+	}
+
+	/**
+	 * Hash the content of the index page.
+	 */
+	public static String hashIndex(Collection<String> modules, Map<String, List<String>> importedModules) {
+		MessageDigest md = SymbolFileCache.newDigest();
+		List<String> sortedModules = new ArrayList<>(modules);
+		Collections.sort(sortedModules);
+		for (String module : sortedModules) {
+			md.update(("\n" + module + ":").getBytes(StandardCharsets.UTF_8));
+			for (String imp : importedModules.getOrDefault(module, Collections.emptyList())) {
+				md.update((" " + imp).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return SymbolFileCache.toHex(md.digest());
+	}
+
+	public static class ModuleEntry {
+		private final String key, rscHash;
+		private String usageHash = "-";
+		private final Set<String> anchors = new TreeSet<>(), usageLinks = new TreeSet<>(), references = new TreeSet<>();
+		private final List<String> procedures = new ArrayList<>(), imports = new ArrayList<>();
+		private int[] calls = new int[0], exports = new int[0];
+
+		public ModuleEntry(String key, String rscHash) {
+			this.key = key;
+			this.rscHash = rscHash;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getRscHash() {
+			return rscHash;
+		}
+
+		public String getUsageHash() {
+			return usageHash;
+		}
+
+		public void setUsageHash(String usageHash) {
+			this.usageHash = usageHash;
+		}
+
+		/** Global link anchors (<code>Module.html#name</code>) defined in this module */
+		public Set<String> getAnchors() {
+			return anchors;
+		}
+
+		/** Exported anchors (<code>Module.html#name</code>) marked in this module */
+		public Set<String> getUsageLinks() {
+			return usageLinks;
+		}
+
+		/** Links to exports of other modules */
+		public Set<String> getReferences() {
+			return references;
+		}
+
+		/** Anchors of the procedures found in the code, in ascending order */
+		public List<String> getProcedures() {
+			return procedures;
+		}
+
+		/**
+		 * Names of the modules referenced by the code, by module number;
+		 * number 0 is the module itself
+		 */
+		public List<String> getImports() {
+			return imports;
+		}
+
+		/**
+		 * Calls found in the code, as triples of calling procedure, module
+		 * number and called procedure; calls to other modules refer to their
+		 * procedure number instead
+		 */
+		public int[] getCalls() {
+			return calls;
+		}
+
+		public void setCalls(int[] calls) {
+			this.calls = calls;
+		}
+
+		/** Procedures of the entries by procedure number, or -1 */
+		public int[] getExports() {
+			return exports;
+		}
+
+		public void setExports(int[] exports) {
+			this.exports = exports;
+		}
+	}
+}
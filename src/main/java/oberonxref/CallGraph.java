@@ -0,0 +1,303 @@
+package oberonxref;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Calls between procedures of all modules, found in the branch and link
+ * instructions of their object files.
+ *
+ * The calls of each module are collected while its main page is rendered,
+ * using the anchors of the procedure declarations that enclose the code, and
+ * kept in its manifest entry as numbers. Calls to other modules refer to a
+ * procedure number, which is resolved through the entries of the called
+ * module once all modules are known. Procedures are numbered in order of
+ * module and anchor; callees and callers are stored as adjacency arrays, so
+ * the graph is built in time linear in the number of procedures and calls.
+ */
+public class CallGraph {
+
+	/** Anchor for code outside of any procedure declaration */
+	private static final String MODULE_ANCHOR = "MODULE";
+
+	/**
+	 * Collect the procedures, calls and entries of a module into its
+	 * manifest entry.
+	 */
+	public static void collectCalls(String module, TokenBuffer tokens, Disassembly disassembly, BuildManifest.ModuleEntry entry) {
+		ControlFlowGraph cfg = disassembly.buildControlFlowGraph();
+		Instructions code = disassembly.getInstructions();
+		ProcedureDeclarations declarations = new ProcedureDeclarations(tokens);
+		String[] anchors = new String[cfg.getProcedureCount()];
+		for (int p = 0; p < anchors.length; p++) {
+			anchors[p] = declarations.findAnchor(disassembly.codePositions[cfg.getProcedureStart(p)]);
+		}
+		// an entry is only looked up when another module calls it, which
+		// proves it to be code even if it does not start a procedure here
+		String[] entryAnchors = new String[disassembly.getEntryCount()];
+		for (int number = 0; number < entryAnchors.length; number++) {
+			int index = disassembly.getEntry(number);
+			if (index != -1)
+				entryAnchors[number] = declarations.findAnchor(disassembly.codePositions[index]);
+		}
+		// several procedures of the code may belong to the same declaration
+		Set<String> uniqueAnchors = new TreeSet<>(Arrays.asList(anchors));
+		for (String anchor : entryAnchors) {
+			if (anchor != null)
+				uniqueAnchors.add(anchor);
+		}
+		List<String> procedures = entry.getProcedures();
+		procedures.addAll(uniqueAnchors);
+		int[] numbers = new int[anchors.length];
+		for (int p = 0; p < anchors.length; p++) {
+			numbers[p] = Collections.binarySearch(procedures, anchors[p]);
+		}
+		for (int m = 0; m < disassembly.getModuleCount(); m++) {
+			entry.getImports().add(disassembly.getModuleName(m));
+		}
+		int[] calls = new int[code.size() * 3];
+		int count = 0;
+		for (int p = 0; p < anchors.length; p++) {
+			for (int i = cfg.getProcedureStart(p); i < cfg.getProcedureEnd(p); i++) {
+				if (!code.isCall(i))
+					continue;
+				int target = code.getTarget(i);
+				if (code.getFixup(i) == Instructions.FIXUP_PROCEDURE) {
+					if (code.getB(i) == 0 || code.getB(i) >= disassembly.getModuleCount())
+						continue;
+					calls[count++] = numbers[p];
+					calls[count++] = code.getB(i);
+					calls[count++] = code.getImmediate(i);
+				} else if (target >= 0 && target < code.size()) {
+					calls[count++] = numbers[p];
+					calls[count++] = 0;
+					calls[count++] = numbers[cfg.getProcedure(cfg.getBlockAt(target))];
+				}
+			}
+		}
+		entry.setCalls(Arrays.copyOf(calls, count));
+		int[] exports = new int[entryAnchors.length];
+		for (int number = 0; number < exports.length; number++) {
+			exports[number] = entryAnchors[number] == null ? -1 : Collections.binarySearch(procedures, entryAnchors[number]);
+		}
+		entry.setExports(exports);
+	}
+
+	private final String[] modules, anchors;
+	private final Map<String, Integer> firstProcedures = new HashMap<>();
+	private final int[] calleeStarts, callees, callerStarts, callers;
+
+	public CallGraph(BuildManifest manifest) {
+		// number the procedures of all modules, which are in order already
+		String[] moduleNames = manifest.getModules().toArray(new String[0]);
+		BuildManifest.ModuleEntry[] entries = new BuildManifest.ModuleEntry[moduleNames.length];
+		Map<String, Integer> moduleNumbers = new HashMap<>();
+		int[] firsts = new int[moduleNames.length + 1];
+		int callCount = 0;
+		for (int m = 0; m < moduleNames.length; m++) {
+			entries[m] = manifest.getModule(moduleNames[m]);
+			moduleNumbers.put(moduleNames[m], m);
+			firsts[m + 1] = firsts[m] + entries[m].getProcedures().size();
+			callCount += entries[m].getCalls().length / 3;
+		}
+
+		// resolve module and procedure numbers of the calls
+		int[] from = new int[callCount], to = new int[callCount];
+		callCount = 0;
+		for (int m = 0; m < moduleNames.length; m++) {
+			List<String> imports = entries[m].getImports();
+			int[] importedModules = new int[imports.size()];
+			for (int k = 0; k < importedModules.length; k++) {
+				importedModules[k] = k == 0 ? m : moduleNumbers.getOrDefault(imports.get(k), -1);
+			}
+			int[] calls = entries[m].getCalls();
+			for (int k = 0; k < calls.length; k += 3) {
+				int module = calls[k + 1] < importedModules.length ? importedModules[calls[k + 1]] : -1, callee = calls[k + 2];
+				if (module != -1 && calls[k + 1] != 0) {
+					int[] exports = entries[module].getExports();
+					callee = callee < exports.length ? exports[callee] : -1;
+				}
+				if (module != -1 && callee != -1) {
+					from[callCount] = firsts[m] + calls[k];
+					to[callCount] = firsts[module] + callee;
+					callCount++;
+				}
+			}
+		}
+
+		// only keep procedures with calls, without changing their order
+		boolean[] used = new boolean[firsts[moduleNames.length]];
+		for (int k = 0; k < callCount; k++) {
+			used[from[k]] = true;
+			used[to[k]] = true;
+		}
+		int procedureCount = 0;
+		for (boolean u : used) {
+			if (u)
+				procedureCount++;
+		}
+		modules = new String[procedureCount];
+		anchors = new String[procedureCount];
+		int[] ids = new int[used.length];
+		int id = 0;
+		for (int m = 0; m < moduleNames.length; m++) {
+			for (int p = firsts[m]; p < firsts[m + 1]; p++) {
+				if (!used[p])
+					continue;
+				modules[id] = moduleNames[m];
+				anchors[id] = entries[m].getProcedures().get(p - firsts[m]);
+				firstProcedures.putIfAbsent(moduleNames[m], id);
+				ids[p] = id++;
+			}
+		}
+		for (int k = 0; k < callCount; k++) {
+			from[k] = ids[from[k]];
+			to[k] = ids[to[k]];
+		}
+
+		// sort the calls into adjacency arrays
+		int[] starts = new int[modules.length + 1], sorted = new int[callCount];
+		bucket(from, to, callCount, starts, sorted);
+		// drop repeated calls, which are adjacent now
+		int uniqueCount = 0;
+		calleeStarts = new int[modules.length + 1];
+		for (int procedure = 0; procedure < modules.length; procedure++) {
+			calleeStarts[procedure] = uniqueCount;
+			for (int k = starts[procedure]; k < starts[procedure + 1]; k++) {
+				if (k == starts[procedure] || sorted[k] != sorted[k - 1]) {
+					from[uniqueCount] = procedure;
+					to[uniqueCount] = sorted[k];
+					uniqueCount++;
+				}
+			}
+		}
+		calleeStarts[modules.length] = uniqueCount;
+		callees = Arrays.copyOf(to, uniqueCount);
+		callerStarts = new int[modules.length + 1];
+		callers = new int[uniqueCount];
+		bucket(to, from, uniqueCount, callerStarts, callers);
+	}
+
+	/**
+	 * Sort pairs into adjacency arrays by their first element, keeping the
+	 * second elements of each bucket in ascending order. Two stable counting
+	 * sorts (by second, then by first element) take linear time.
+	 */
+	private static void bucket(int[] keys, int[] values, int count, int[] starts, int[] result) {
+		int[] order = new int[count];
+		for (int k = 0; k < count; k++) {
+			order[k] = k;
+		}
+		order = countingSort(values, order, count, new int[starts.length]);
+		order = countingSort(keys, order, count, starts);
+		for (int k = 0; k < count; k++) {
+			result[k] = values[order[k]];
+		}
+	}
+
+	private static int[] countingSort(int[] keys, int[] order, int count, int[] starts) {
+		for (int k = 0; k < count; k++) {
+			starts[keys[k] + 1]++;
+		}
+		for (int i = 1; i < starts.length; i++) {
+			starts[i] += starts[i - 1];
+		}
+		int[] next = Arrays.copyOf(starts, starts.length - 1);
+		int[] result = new int[count];
+		for (int k : order) {
+			result[next[keys[k]]++] = k;
+		}
+		return result;
+	}
+
+	public int getProcedureCount() {
+		return modules.length;
+	}
+
+	/**
+	 * Return the first procedure of a module; the procedures of a module are
+	 * numbered consecutively. Returns {@link #getProcedureCount()} if the
+	 * module has no procedures with calls.
+	 */
+	public int getFirstProcedure(String module) {
+		return firstProcedures.getOrDefault(module, modules.length);
+	}
+
+	public String getModule(int procedure) {
+		return modules[procedure];
+	}
+
+	public String getAnchor(int procedure) {
+		return anchors[procedure];
+	}
+
+	public int getCalleeCount(int procedure) {
+		return calleeStarts[procedure + 1] - calleeStarts[procedure];
+	}
+
+	public int getCallee(int procedure, int index) {
+		return callees[calleeStarts[procedure] + index];
+	}
+
+	public int getCallerCount(int procedure) {
+		return callerStarts[procedure + 1] - callerStarts[procedure];
+	}
+
+	public int getCaller(int procedure, int index) {
+		return callers[callerStarts[procedure] + index];
+	}
+
+	/**
+	 * Procedure declarations of a module, to find the innermost one that
+	 * encloses a source position.
+	 */
+	static class ProcedureDeclarations {
+		private final TokenBuffer tokens;
+		private final int[] starts, ends, parents;
+
+		ProcedureDeclarations(TokenBuffer tokens) {
+			this.tokens = tokens;
+			int count = tokens.getProcedureCount();
+			starts = new int[count];
+			ends = new int[count];
+			parents = new int[count];
+			// declarations are recorded in source order, so enclosing ones come first
+			int[] stack = new int[count];
+			int depth = 0;
+			for (int p = 0; p < count; p++) {
+				int end = tokens.getProcedureEnd(p);
+				starts[p] = tokens.getStart(tokens.getProcedureName(p));
+				ends[p] = tokens.getStart(end) + tokens.getLength(end);
+				while (depth > 0 && ends[stack[depth - 1]] <= starts[p])
+					depth--;
+				parents[p] = depth == 0 ? -1 : stack[depth - 1];
+				stack[depth++] = p;
+			}
+		}
+
+		/**
+		 * Return the innermost declaration that encloses a position, or -1.
+		 */
+		int findDeclaration(int position) {
+			int p = Arrays.binarySearch(starts, position);
+			if (p < 0)
+				p = -p - 2;
+			while (p != -1 && ends[p] <= position)
+				p = parents[p];
+			return p;
+		}
+
+		String getAnchor(int declaration) {
+			return declaration == -1 ? MODULE_ANCHOR : tokens.getLink(tokens.getProcedureName(declaration)).substring(1);
+		}
+
+		String findAnchor(int position) {
+			return getAnchor(findDeclaration(position));
+		}
+	}
+}
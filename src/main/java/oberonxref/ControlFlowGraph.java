@@ -0,0 +1,164 @@
+package oberonxref;
+
+import java.util.Arrays;
+
+/**
+ * Procedures, basic blocks and control flow edges of one module.
+ *
+ * Procedures start at instruction 0, at the given entries (like the
+ * commands, procedure entries and the entry point of an object file) and at
+ * targets of local calls, and extend to the next procedure start. Each
+ * procedure is split into basic blocks at branch targets and after branches;
+ * calls do not end a block. Blocks are numbered in code order, so the blocks
+ * of a procedure are numbered consecutively. Edges only connect blocks of the
+ * same procedure; jumps into other procedures and register branches (like
+ * returns) end a block without successors.
+ */
+public class ControlFlowGraph {
+
+	private final int size;
+	private final int[] blockStarts, blockProcedures, procedureFirstBlocks;
+	private final int[] successorStarts, successors;
+
+	/**
+	 * @param code
+	 *            Decoded instructions
+	 * @param entries
+	 *            Instruction indices where procedures start, in any order;
+	 *            indices outside the code are ignored
+	 */
+	public ControlFlowGraph(Instructions code, int[] entries) {
+		size = code.size();
+		boolean[] procedureStart = new boolean[size];
+		if (size > 0)
+			procedureStart[0] = true;
+		for (int entry : entries) {
+			if (entry >= 0 && entry < size)
+				procedureStart[entry] = true;
+		}
+		for (int i = 0; i < size; i++) {
+			int target = code.getTarget(i);
+			if (code.isCall(i) && target >= 0 && target < size)
+				procedureStart[target] = true;
+		}
+		boolean[] leader = procedureStart.clone();
+		for (int i = 0; i < size; i++) {
+			if (!code.isBranch(i) || code.isCall(i))
+				continue;
+			int target = code.getTarget(i);
+			if (target >= 0 && target < size)
+				leader[target] = true;
+			if (i + 1 < size)
+				leader[i + 1] = true;
+		}
+		int blockCount = 0, procedureCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (leader[i])
+				blockCount++;
+			if (procedureStart[i])
+				procedureCount++;
+		}
+		blockStarts = new int[blockCount + 1];
+		blockProcedures = new int[blockCount];
+		procedureFirstBlocks = new int[procedureCount + 1];
+		int block = 0, procedure = -1;
+		for (int i = 0; i < size; i++) {
+			if (procedureStart[i])
+				procedureFirstBlocks[++procedure] = block;
+			if (leader[i]) {
+				blockStarts[block] = i;
+				blockProcedures[block] = procedure;
+				block++;
+			}
+		}
+		blockStarts[blockCount] = size;
+		procedureFirstBlocks[procedureCount] = blockCount;
+
+		successorStarts = new int[blockCount + 1];
+		int[] edges = new int[blockCount * 2];
+		int edgeCount = 0;
+		for (block = 0; block < blockCount; block++) {
+			successorStarts[block] = edgeCount;
+			int last = blockStarts[block + 1] - 1;
+			boolean fallThrough = true;
+			if (code.isBranch(last) && !code.isCall(last)) {
+				fallThrough = code.isConditional(last);
+				int target = code.getTarget(last);
+				if (target >= 0 && target < size) {
+					int targetBlock = getBlockAt(target);
+					if (blockProcedures[targetBlock] == blockProcedures[block])
+						edges[edgeCount++] = targetBlock;
+				}
+			}
+			if (fallThrough && last + 1 < size && !procedureStart[last + 1]) {
+				if (edgeCount == successorStarts[block] || edges[edgeCount - 1] != block + 1)
+					edges[edgeCount++] = block + 1;
+			}
+		}
+		successorStarts[blockCount] = edgeCount;
+		successors = Arrays.copyOf(edges, edgeCount);
+	}
+
+	public int getProcedureCount() {
+		return procedureFirstBlocks.length - 1;
+	}
+
+	public int getProcedureStart(int procedure) {
+		return blockStarts[procedureFirstBlocks[procedure]];
+	}
+
+	/**
+	 * Return the index after the last instruction of a procedure.
+	 */
+	public int getProcedureEnd(int procedure) {
+		return blockStarts[procedureFirstBlocks[procedure + 1]];
+	}
+
+	public int getFirstBlock(int procedure) {
+		return procedureFirstBlocks[procedure];
+	}
+
+	/**
+	 * Return the block after the last block of a procedure.
+	 */
+	public int getEndBlock(int procedure) {
+		return procedureFirstBlocks[procedure + 1];
+	}
+
+	public int getBlockCount() {
+		return blockProcedures.length;
+	}
+
+	public int getBlockStart(int block) {
+		return blockStarts[block];
+	}
+
+	/**
+	 * Return the index after the last instruction of a block.
+	 */
+	public int getBlockEnd(int block) {
+		return blockStarts[block + 1];
+	}
+
+	public int getProcedure(int block) {
+		return blockProcedures[block];
+	}
+
+	/**
+	 * Return the block that contains an instruction.
+	 */
+	public int getBlockAt(int instruction) {
+		if (instruction < 0 || instruction >= size)
+			throw new IndexOutOfBoundsException("Instruction " + instruction);
+		int block = Arrays.binarySearch(blockStarts, 0, blockProcedures.length, instruction);
+		return block >= 0 ? block : -block - 2;
+	}
+
+	public int getSuccessorCount(int block) {
+		return successorStarts[block + 1] - successorStarts[block];
+	}
+
+	public int getSuccessor(int block, int index) {
+		return successors[successorStarts[block] + index];
+	}
+}
@@ -1,14 +1,16 @@
 package oberonxref;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -24,265 +26,546 @@ public class Disassembly {
 			"PL", "NE", "CC", "VC", "HI", "GE", "GT", "NO"
 	};
 
-	private static String readString(DataInputStream in) throws IOException {
+	private static String readString(ByteBuffer buf) {
 		StringBuilder sb = new StringBuilder();
-		byte b = in.readByte();
+		byte b = buf.get();
 		while (b != 0) {
 			sb.append((char) (b & 0xFF));
-			b = in.readByte();
+			b = buf.get();
 		}
 		return sb.toString();
 	}
 
-	static ByteBuffer flipBuffer = ByteBuffer.allocate(4);
-
-	private static int readInt(DataInputStream dis) throws IOException {
-		flipBuffer.clear();
-		flipBuffer.order(ByteOrder.BIG_ENDIAN);
-		flipBuffer.putInt(dis.readInt());
-		flipBuffer.flip();
-		flipBuffer.order(ByteOrder.LITTLE_ENDIAN);
-		return flipBuffer.getInt();
-	}
-
-	private static String reg(int r) {
-		if (r < 12)
-			return "R" + Integer.toHexString(r % 0x10).toUpperCase();
-		else if (r == 12)
-			return "MT";
-		else if (r == 13)
-			return "SB";
-		else if (r == 14)
-			return "SP";
-		else if (r == 15)
-			return "LNK";
-		throw new IllegalArgumentException("Register " + r);
-	}
-
-	private static String opcode(int _w, int addr, Fixup fixup, List<String> moduleNames, int data, Map<Integer, String> strings) {
-		long w = _w & 0xFFFFFFFFL;
-		int k = (int) (w / 0x40000000 % 4);
-		int a = (int) (w / 0x1000000 % 0x10);
-		int b = (int) (w / 0x100000 % 0x10);
-		int op = (int) (w / 0x10000 % 0x10);
-		int u = (int) (w / 0x20000000 % 2);
+	private static void readInts(ByteBuffer buf, int[] target) {
+		buf.asIntBuffer().get(target);
+		((Buffer) buf).position(buf.position() + target.length * 4);
+	}
+
+	private static byte[] readBytes(ByteBuffer buf, int length) {
+		if (length < 0 || length > buf.remaining())
+			throw new BufferUnderflowException();
+		byte[] result = new byte[length];
+		buf.get(result);
+		return result;
+	}
+
+	private static final String[] REGISTERS = {
+			"R0", "R1", "R2", "R3", "R4", "R5", "R6", "R7",
+			"R8", "R9", "RA", "RB", "MT", "SB", "SP", "LNK"
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/** Upper half of <code>SUB SP, SP, size</code> */
+	private static final int PROLOGUE = 0x4EE9;
+
+	private static final String INDENT = "               ";
+
+	/**
+	 * Append a value as unsigned uppercase hex, with at least the given
+	 * number of digits.
+	 */
+	private static void appendHex(StringBuilder sb, int value, int minDigits) {
+		int digits = 1;
+		while (digits < 8 && (value >>> (digits * 4)) != 0)
+			digits++;
+		for (int i = Math.max(digits, minDigits) - 1; i >= 0; i--) {
+			sb.append(HEX_DIGITS[(value >>> (i * 4)) & 0xF]);
+		}
+	}
+
+	private static void appendOperation(StringBuilder sb, int op, int u, int a, int b) {
+		sb.append(mnemo0[op]);
+		if (u == 1)
+			sb.append('\'');
+		sb.append(' ').append(REGISTERS[a]).append(", ").append(REGISTERS[b]).append(", ");
+	}
+
+	private static void appendMemory(StringBuilder sb, int u, int a, int b) {
+		sb.append(u == 1 ? "STR " : "LDR ").append(REGISTERS[a]).append(", ").append(REGISTERS[b]).append(", ");
+	}
+
+	private static void appendBranch(StringBuilder sb, int w, int a) {
+		sb.append('B');
+		if ((w >>> 28 & 1) == 1)
+			sb.append('L');
+		sb.append(mnemo1[a]).append(' ');
+	}
+
+	private void appendStringReference(StringBuilder sb, int offset) {
+		appendHex(sb, offset, 1);
+		sb.append("H [");
+		if (offset < data)
+			sb.append("data");
+		else if (strings.get(offset).equals("\0\0"))
+			sb.append("pointer reference");
+		else
+			sb.append('"').append(strings.get(offset)).append('"');
+		sb.append(']');
+	}
+
+	private void appendOpcode(StringBuilder sb, int addr) {
+		int w = opcodes[addr];
+		Fixup fixup = fixups[addr];
+		int k = w >>> 30;
+		int u = w >>> 29 & 1;
+		int a = w >>> 24 & 0xF;
+		int b = w >>> 20 & 0xF;
+		int op = w >>> 16 & 0xF;
 		if (k == 2 && fixup == Fixup.D) {
-			int ww = (int) (w % 0x10000);
-			if (ww >= 0x8000)
-				ww -= 0x10000;
-			int mno = b;
-			b = 12;
-			return String.format("%s %s, %s, MOD%d [%s]", u == 1 ? "STR" : "LDR", reg(a), reg(b), mno, moduleNames.get(mno));
-		} else if (k == 2 && fixup == Fixup.D2A) {
-			int vno = (int) (w % 0x100);
-			boolean proc = (w / 0x100) % 2 == 1;
-			return String.format("%s %s, %s, %s%d", u == 1 ? "STR" : "LDR", reg(a), reg(b), proc ? "PROC" : "VAR", vno);
-		} else if (k == 1 && fixup == Fixup.D2A) {
-			int vno = (int) (w % 0x100);
-			boolean proc = (w / 0x100) % 2 == 1;
-			return String.format("%s%s %s, %s, %s%d", mnemo0[op], u == 1 ? "'" : "", reg(a), reg(b), proc ? "PROC" : "VAR", vno);
+			appendMemory(sb, u, a, 12);
+			sb.append("MOD").append(b).append(" [").append(moduleNames.get(b)).append(']');
+		} else if ((k == 1 || k == 2) && fixup == Fixup.D2A) {
+			if (k == 1)
+				appendOperation(sb, op, u, a, b);
+			else
+				appendMemory(sb, u, a, b);
+			sb.append((w >>> 8 & 1) == 1 ? "PROC" : "VAR").append(w & 0xFF);
 		} else if (k == 1 && fixup == Fixup.D2S) {
-			int ww = (int) (w % 0x10000);
-			if (ww >= 0x8000)
-				ww -= 0x10000;
-			String str = "data";
-			if (ww >= data) {
-				if (strings.get(ww).equals("\0\0"))
-					str = "pointer reference";
-				else
-					str = "\"" + strings.get(ww).toString() + "\"";
-			}
-			return String.format("%s%s %s, %s, %XH [%s]", mnemo0[op], u == 1 ? "'" : "", reg(a), reg(b), ww, str);
+			appendOperation(sb, op, u, a, b);
+			appendStringReference(sb, (short) w);
 		} else if (k == 2 && fixup == Fixup.D2S) {
-			int ww = (int) (w % 0x10000);
-			if (ww >= 0x8000)
-				ww -= 0x10000;
-			String str = "data";
-			if (ww >= data) {
-				if (strings.get(ww).equals("\0\0"))
-					str = "pointer reference";
-				else
-					str = "\"" + strings.get(ww).toString() + "\"";
-			}
-			return String.format("%s %s, %s, %XH [%s]", u == 1 ? "STR" : "LDR", reg(a), reg(b), ww, str);
+			appendMemory(sb, u, a, b);
+			appendStringReference(sb, (short) w);
 		} else if (k == 0 && fixup == Fixup.D2S) {
-			return String.format("%s%s %s, %s, %s [global array]", mnemo0[op], u == 1 ? "'" : "", reg(a), reg(b), reg((int) (w % 0x10)));
+			appendOperation(sb, op, u, a, b);
+			sb.append(REGISTERS[w & 0xF]).append(" [global array]");
 		} else if (k == 3 && u == 1 && fixup == Fixup.P) {
-			int mno = b;
-			int pno = (int) (w / 0x1000) % 0x100;
-			return String.format("B%s%s MOD%d [%s] PROC%d", w / 0x10000000 % 2 == 1 ? "L" : "", mnemo1[a].toString(), mno, moduleNames.get(mno), pno);
+			appendBranch(sb, w, a);
+			sb.append("MOD").append(b).append(" [").append(moduleNames.get(b)).append("] PROC").append(w >>> 12 & 0xFF);
 		} else if (fixup != null) {
 			throw new IllegalArgumentException(fixup + "/" + k + "/" + u);
 		} else if (k == 0) { // op REG REG REG
-			return String.format("%s%s %s, %s, %s", mnemo0[op], u == 1 ? "'" : "", reg(a), reg(b), reg((int) (w % 0x10)));
+			appendOperation(sb, op, u, a, b);
+			sb.append(REGISTERS[w & 0xF]);
 		} else if (k == 1) { // op REG REG IMM
-			int ww = (int) (w % 0x10000);
-			if (ww >= 0x8000)
-				ww -= 0x10000;
-			return String.format("%s%s %s, %s, %XH", mnemo0[op], u == 1 ? "'" : "", reg(a), reg(b), ww);
+			appendOperation(sb, op, u, a, b);
+			appendHex(sb, (short) w, 1);
+			sb.append('H');
 		} else if (k == 2) { // LDR/STR
-			int ww = (int) (w % 0x10000);
-			if (ww >= 0x8000)
-				ww -= 0x10000;
-			return String.format("%s %s, %s, %XH", u == 1 ? "STR" : "LDR", reg(a), reg(b), ww);
+			appendMemory(sb, u, a, b);
+			appendHex(sb, (short) w, 1);
+			sb.append('H');
 		} else /* if (k == 3) */ { // Branch instruction
+			appendBranch(sb, w, a);
 			if (u == 0) {
-				int trap = (int) (w / 0x10) % 0x10;
-				int pos = (int) (w / 0x100) % 0x10000;
-				return String.format("B%s%s %s%s", w / 0x10000000 % 2 == 1 ? "L" : "", mnemo1[a].toString(), reg((int) (w % 0x10)), trap != 0 || pos != 0 ? " [trap=" + trap + ", pos=" + pos + "]" : "");
+				int trap = w >>> 4 & 0xF;
+				int pos = w >>> 8 & 0xFFFF;
+				sb.append(REGISTERS[w & 0xF]);
+				if (trap != 0 || pos != 0)
+					sb.append(" [trap=").append(trap).append(", pos=").append(pos).append(']');
+				return;
 			}
-
-			int ww = (int) (w % 0x100000);
-			if (ww >= 0x80000)
-				ww -= 0x100000;
-			return String.format("B%s%s %d [%04XH]", w / 0x10000000 % 2 == 1 ? "L" : "", mnemo1[a].toString(), ww, addr + 1 + ww);
+			int ww = w << 12 >> 12;
+			sb.append(ww).append(" [");
+			appendHex(sb, addr + 1 + ww, 4);
+			sb.append("H]");
 		}
 	}
 
+	/**
+	 * Disassemble an object file. The file is mapped into memory and decoded
+	 * without any shared state, so several files can be decoded at the same
+	 * time.
+	 */
 	public static Disassembly disassembly(File file, boolean parseStrings) throws IOException {
-		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-			List<String> lines = new ArrayList<>();
-			List<String> moduleNames = new ArrayList<>();
-			String moduleName = readString(dis);
-			moduleNames.add(moduleName);
-			int moduleKey = readInt(dis);
-			int version = (int) dis.readByte();
-			int size = readInt(dis);
-			lines.add(String.format("               .MODULE %s (KEY %08X, VERSION %d, SIZE %08X)", moduleName, moduleKey, version, size));
-			String importName;
-			while (!(importName = readString(dis)).isEmpty()) {
-				moduleNames.add(importName);
-				int importKey = readInt(dis);
-				lines.add(String.format("               .IMPORT %s (KEY %08X)", importName, importKey));
-			}
-			int tdCount = readInt(dis) / 4;
-			if (tdCount > 0) {
-				StringBuilder sb = new StringBuilder();
-				sb.append("               .TYPEDESC");
-				for (int i = 0; i < tdCount; i++) {
-					sb.append(String.format(" %08X", readInt(dis)));
-				}
-				lines.add(sb.toString());
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		try {
+			return disassembly(buf, parseStrings);
+		} catch (BufferUnderflowException ex) {
+			throw new EOFException(file.getPath());
+		}
+	}
+
+	private static Disassembly disassembly(ByteBuffer buf, boolean parseStrings) throws IOException {
+		List<String> lines = new ArrayList<>();
+		List<String> moduleNames = new ArrayList<>();
+		String moduleName = readString(buf);
+		moduleNames.add(moduleName);
+		int moduleKey = buf.getInt();
+		int version = (int) buf.get();
+		int size = buf.getInt();
+		lines.add(String.format("               .MODULE %s (KEY %08X, VERSION %d, SIZE %08X)", moduleName, moduleKey, version, size));
+		String importName;
+		while (!(importName = readString(buf)).isEmpty()) {
+			moduleNames.add(importName);
+			int importKey = buf.getInt();
+			lines.add(String.format("               .IMPORT %s (KEY %08X)", importName, importKey));
+		}
+		int[] typeDescriptors = new int[buf.getInt() / 4];
+		readInts(buf, typeDescriptors);
+		if (typeDescriptors.length > 0) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("               .TYPEDESC");
+			for (int typeDescriptor : typeDescriptors) {
+				sb.append(String.format(" %08X", typeDescriptor));
 			}
-			int data = readInt(dis);
-			if (data != 0)
-				lines.add(String.format("               .DATA %XH", data));
-			data += tdCount * 4;
-			int stringLength = readInt(dis);
-			Map<Integer, String> strings = null;
-			if (parseStrings) {
-				strings = new HashMap<>();
-				StringBuilder curr = new StringBuilder();
-				for (int i = 0; i < stringLength; i++) {
-					char __ch = (char) dis.readUnsignedByte();
-					if (__ch == '\0') {
-						int offset = data + i - curr.length();
-						strings.put(offset, curr.toString());
-						lines.add("               .STRING " + String.format("%XH", offset) + " \"" + curr.toString() + "\"");
-						curr.setLength(0);
-						while (i % 4 != 3) {
-							int b = dis.readUnsignedByte();
-							if (b != 0)
-								throw new IllegalStateException(i + "/" + b + ": " + (char) b);
-							i++;
-						}
-					} else {
-						curr.append(__ch);
+			lines.add(sb.toString());
+		}
+		int variableSize = buf.getInt();
+		if (variableSize != 0)
+			lines.add(String.format("               .DATA %XH", variableSize));
+		int data = variableSize + typeDescriptors.length * 4;
+		byte[] stringData = readBytes(buf, buf.getInt());
+		Map<Integer, String> strings = null;
+		if (parseStrings) {
+			strings = new HashMap<>();
+			StringBuilder curr = new StringBuilder();
+			for (int i = 0; i < stringData.length; i++) {
+				char __ch = (char) (stringData[i] & 0xFF);
+				if (__ch == '\0') {
+					int offset = data + i - curr.length();
+					strings.put(offset, curr.toString());
+					lines.add("               .STRING " + String.format("%XH", offset) + " \"" + curr.toString() + "\"");
+					curr.setLength(0);
+					while (i % 4 != 3) {
+						int b = stringData[++i] & 0xFF;
+						if (b != 0)
+							throw new IllegalStateException(i + "/" + b + ": " + (char) b);
 					}
+				} else {
+					curr.append(__ch);
 				}
-				if (curr.length() != 0)
-					throw new RuntimeException(curr.toString());
-			} else {
-				lines.add("               .STRING TABLE SKIPPED");
-				dis.skip(stringLength);
-				data = Integer.MAX_VALUE;
-			}
-			int[] opcodes = new int[readInt(dis)];
-			for (int i = 0; i < opcodes.length; i++) {
-				opcodes[i] = readInt(dis);
-			}
-			Map<String, Integer> commandOffsets = new LinkedHashMap<>();
-			String commandName;
-			while (!(commandName = readString(dis)).isEmpty()) {
-				commandOffsets.put(commandName, readInt(dis));
-			}
-			int[] entries = new int[readInt(dis)];
-			for (int i = 0; i < entries.length; i++) {
-				entries[i] = readInt(dis);
-			}
-			List<Integer> pointerRefs = new ArrayList<>();
-			int pointerRef;
-			while ((pointerRef = readInt(dis)) != -1) {
-				pointerRefs.add(pointerRef);
-			}
-			if (!pointerRefs.isEmpty()) {
-				StringBuilder sb = new StringBuilder();
-				sb.append("               .POINTER_REFERENCES");
-				for (Integer pref : pointerRefs) {
-					sb.append(String.format(" %XH", pref));
-					if (strings != null)
-						strings.put(pref, "\0\0");
-				}
-				lines.add(sb.toString());
-			}
-			int fixP = readInt(dis), fixD = readInt(dis), fixT = readInt(dis), entryPoint = readInt(dis);
-			lines.add(String.format("               .FIXUP T %XH", fixT));
-			if (dis.readByte() != 'O' || dis.readByte() != 'M')
-				throw new EOFException();
-			Disassembly result = new Disassembly(opcodes.length);
-			for (int i = 0; i < result.codePositions.length; i++) {
-				result.codePositions[i] = readInt(dis);
-			}
-			if (dis.readByte() != 'X' || dis.read() != -1)
-				throw new EOFException();
-			Fixup[] fixups = new Fixup[opcodes.length];
-			while (fixP != 0) {
-				if (fixups[fixP] != null)
-					throw new IllegalStateException();
-				fixups[fixP] = Fixup.P;
-				fixP -= opcodes[fixP] & 0xFFF;
 			}
-			while (fixD != 0) {
-				if (fixups[fixD] != null)
-					throw new IllegalStateException();
-				fixups[fixD] = Fixup.D;
-				int mno = (opcodes[fixD] & 0xF00000) / 0x100000 & 0x0F;
-				fixups[fixD + 1] = mno == 0 ? Fixup.D2S : Fixup.D2A;
-				fixD -= opcodes[fixD] & 0xFFF;
-			}
-			result.introductionLines.addAll(lines);
-			lines.clear();
-			for (int i = 0; i < opcodes.length; i++) {
-				for (int j = 0; j < entries.length; j++) {
-					if (i * 4 == entries[j])
-						lines.add(String.format("               .PROC %d", j));
-				}
-				for (Map.Entry<String, Integer> command : commandOffsets.entrySet()) {
-					if (i * 4 == command.getValue())
-						lines.add(String.format("               .COMMAND %s", command.getKey()));
-				}
-				if (i * 4 == entryPoint)
-					lines.add("               .ENTRYPOINT");
-				if (fixups[i] == Fixup.D || fixups[i] == Fixup.P)
-					lines.add(String.format("               .FIXUP %s", fixups[i].name()));
-				lines.add(String.format("(%08X):    %s", opcodes[i], opcode(opcodes[i], i, fixups[i], moduleNames, data, strings)));
-				result.codeLines[i] = lines.toArray(new String[lines.size()]);
-				lines.clear();
+			if (curr.length() != 0)
+				throw new RuntimeException(curr.toString());
+		} else {
+			lines.add("               .STRING TABLE SKIPPED");
+			data = Integer.MAX_VALUE;
+		}
+		int[] opcodes = new int[buf.getInt()];
+		readInts(buf, opcodes);
+		Map<String, Integer> commandOffsets = new LinkedHashMap<>();
+		String commandName;
+		while (!(commandName = readString(buf)).isEmpty()) {
+			commandOffsets.put(commandName, buf.getInt());
+		}
+		int[] entries = new int[buf.getInt()];
+		readInts(buf, entries);
+		List<Integer> pointerRefs = new ArrayList<>();
+		int pointerRef;
+		while ((pointerRef = buf.getInt()) != -1) {
+			pointerRefs.add(pointerRef);
+		}
+		if (!pointerRefs.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("               .POINTER_REFERENCES");
+			for (Integer pref : pointerRefs) {
+				sb.append(String.format(" %XH", pref));
+				if (strings != null)
+					strings.put(pref, "\0\0");
 			}
-			return result;
+			lines.add(sb.toString());
+		}
+		int fixP = buf.getInt(), fixD = buf.getInt(), fixT = buf.getInt(), entryPoint = buf.getInt();
+		lines.add(String.format("               .FIXUP T %XH", fixT));
+		if (buf.get() != 'O' || buf.get() != 'M')
+			throw new EOFException();
+		Disassembly result = new Disassembly(opcodes);
+		readInts(buf, result.codePositions);
+		if (buf.get() != 'X' || buf.hasRemaining())
+			throw new EOFException();
+		Fixup[] fixups = result.fixups;
+		while (fixP != 0) {
+			if (fixups[fixP] != null)
+				throw new IllegalStateException();
+			fixups[fixP] = Fixup.P;
+			fixP -= opcodes[fixP] & 0xFFF;
+		}
+		while (fixD != 0) {
+			if (fixups[fixD] != null)
+				throw new IllegalStateException();
+			fixups[fixD] = Fixup.D;
+			int mno = (opcodes[fixD] & 0xF00000) / 0x100000 & 0x0F;
+			fixups[fixD + 1] = mno == 0 ? Fixup.D2S : Fixup.D2A;
+			fixD -= opcodes[fixD] & 0xFFF;
+		}
+		result.introductionLines.addAll(lines);
+		// annotation lines before each instruction, in the order they are printed
+		int[] annotated = new int[entries.length + commandOffsets.size() + 1 + opcodes.length];
+		int[] annotations = new int[annotated.length];
+		int count = 0;
+		for (int j = 0; j < entries.length; j++) {
+			count = addAnnotation(annotated, annotations, count, opcodes.length, entries[j], j);
+		}
+		int commandIndex = 0;
+		for (int commandOffset : commandOffsets.values()) {
+			count = addAnnotation(annotated, annotations, count, opcodes.length, commandOffset, ANNOTATION_COMMAND + commandIndex++);
+		}
+		count = addAnnotation(annotated, annotations, count, opcodes.length, entryPoint, ANNOTATION_ENTRYPOINT);
+		for (int i = 0; i < opcodes.length; i++) {
+			if (fixups[i] == Fixup.D || fixups[i] == Fixup.P)
+				count = addAnnotation(annotated, annotations, count, opcodes.length, i * 4, ANNOTATION_FIXUP + fixups[i].ordinal());
+		}
+		// bucket them by instruction
+		for (int k = 0; k < count; k++) {
+			result.annotationStart[annotated[k] + 1]++;
+		}
+		for (int i = 0; i < opcodes.length; i++) {
+			result.annotationStart[i + 1] += result.annotationStart[i];
+		}
+		result.annotations = new int[count];
+		int[] next = Arrays.copyOf(result.annotationStart, opcodes.length);
+		for (int k = 0; k < count; k++) {
+			result.annotations[next[annotated[k]]++] = annotations[k];
+		}
+		result.entries = new int[entries.length];
+		for (int j = 0; j < entries.length; j++) {
+			result.entries[j] = toInstructionIndex(entries[j], opcodes.length);
+		}
+		result.entryPoint = toInstructionIndex(entryPoint, opcodes.length);
+		result.entryOffsets = entries;
+		result.commandNames = commandOffsets.keySet().toArray(new String[commandOffsets.size()]);
+		result.commands = new int[commandOffsets.size()];
+		commandIndex = 0;
+		for (int commandOffset : commandOffsets.values()) {
+			result.commands[commandIndex++] = toInstructionIndex(commandOffset, opcodes.length);
 		}
+		result.typeDescriptors = typeDescriptors;
+		result.typeFixups = fixT;
+		result.variableSize = variableSize;
+		result.stringData = stringData;
+		result.moduleNames = moduleNames;
+		result.data = data;
+		result.strings = strings;
+		return result;
+	}
+
+	private static int toInstructionIndex(int byteOffset, int opcodeCount) {
+		return byteOffset >= 0 && byteOffset % 4 == 0 && byteOffset / 4 < opcodeCount ? byteOffset / 4 : -1;
+	}
+
+	private static int addAnnotation(int[] annotated, int[] annotations, int count, int opcodeCount, int byteOffset, int annotation) {
+		if (byteOffset < 0 || byteOffset % 4 != 0 || byteOffset / 4 >= opcodeCount)
+			return count;
+		annotated[count] = byteOffset / 4;
+		annotations[count] = annotation;
+		return count + 1;
 	}
 
 	private static enum Fixup {
-		P, D, D2A, D2S
+		P(Instructions.FIXUP_PROCEDURE), D(Instructions.FIXUP_DATA), D2A(Instructions.FIXUP_ADDRESS), D2S(Instructions.FIXUP_STRING);
+
+		private static final Fixup[] VALUES = values();
+
+		private final byte kind;
+
+		private Fixup(byte kind) {
+			this.kind = kind;
+		}
 	}
 
+	/** Annotations are a procedure number, or start with one of these */
+	private static final int ANNOTATION_COMMAND = 0x40000000, ANNOTATION_ENTRYPOINT = 0x50000000, ANNOTATION_FIXUP = 0x60000000;
+
+	private final int[] opcodes;
+	private final Fixup[] fixups;
 	public final int[] codePositions;
-	public final String[][] codeLines;
 	public final List<String> introductionLines = new ArrayList<>();
 
-	public Disassembly(int opcodeSize) {
-		codePositions = new int[opcodeSize];
-		codeLines = new String[opcodeSize][];
+	/**
+	 * Annotations of instruction <code>i</code> are stored from
+	 * <code>annotationStart[i]</code> to <code>annotationStart[i + 1]</code>
+	 */
+	private final int[] annotationStart;
+	private int[] annotations = new int[0];
+	private String[] commandNames = new String[0];
+	private int[] commands = new int[0];
+	private int[] entries = new int[0], entryOffsets = new int[0];
+	private int entryPoint = -1;
+	private int[] typeDescriptors = new int[0];
+	private int typeFixups, variableSize;
+	private byte[] stringData = new byte[0];
+	private Instructions instructions;
+	private List<String> moduleNames = new ArrayList<>();
+	private int data = Integer.MAX_VALUE;
+	private Map<Integer, String> strings;
+
+	/**
+	 * Create a disassembly of raw code without fixups; code positions are
+	 * to be filled in by the caller.
+	 */
+	public Disassembly(int[] opcodes) {
+		this.opcodes = opcodes;
+		fixups = new Fixup[opcodes.length];
+		codePositions = new int[opcodes.length];
+		annotationStart = new int[opcodes.length + 1];
+	}
+
+	public int getInstructionCount() {
+		return opcodes.length;
+	}
+
+	/**
+	 * Return the decoded instructions, which are decoded on first use.
+	 */
+	public Instructions getInstructions() {
+		if (instructions == null) {
+			instructions = new Instructions(opcodes.length);
+			for (int i = 0; i < opcodes.length; i++) {
+				instructions.decode(i, opcodes[i], fixups[i] == null ? Instructions.FIXUP_NONE : fixups[i].kind);
+			}
+		}
+		return instructions;
+	}
+
+	/**
+	 * Build procedures and basic blocks, starting procedures at the entry
+	 * point, the commands and those entries that are procedures.
+	 */
+	public ControlFlowGraph buildControlFlowGraph() {
+		int[] procedureEntries = Arrays.copyOf(commands, commands.length + entries.length + 1);
+		int count = commands.length;
+		for (int number = 0; number < entries.length; number++) {
+			if (isProcedureEntry(number))
+				procedureEntries[count++] = entries[number];
+		}
+		procedureEntries[count++] = entryPoint;
+		return new ControlFlowGraph(getInstructions(), Arrays.copyOf(procedureEntries, count));
+	}
+
+	/**
+	 * Return the number of entries, which are addressed by procedure number
+	 * (<code>PROC</code>) from other modules.
+	 */
+	public int getEntryCount() {
+		return entries.length;
+	}
+
+	/**
+	 * Return the instruction index of an entry, or -1 if it does not point
+	 * to an instruction.
+	 */
+	public int getEntry(int number) {
+		return entries[number];
+	}
+
+	/**
+	 * Return whether an entry is known to be a procedure, as it is a command
+	 * or points to a procedure prologue (<code>SUB SP, SP, size</code>). The
+	 * entries table also holds the data offsets of exported variables and
+	 * type descriptors, which may happen to point into the code as well.
+	 */
+	public boolean isProcedureEntry(int number) {
+		int index = entries[number];
+		if (index == -1)
+			return false;
+		if (opcodes[index] >>> 16 == PROLOGUE)
+			return true;
+		for (int command : commands) {
+			if (command == index)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the raw offset of an entry, which is relative to the code for
+	 * procedures and relative to the data for variables.
+	 */
+	public int getEntryOffset(int number) {
+		return entryOffsets[number];
+	}
+
+	/**
+	 * Return the instruction index of the module body, or -1.
+	 */
+	public int getEntryPoint() {
+		return entryPoint;
+	}
+
+	public int getCommandCount() {
+		return commandNames.length;
+	}
+
+	public String getCommandName(int number) {
+		return commandNames[number];
+	}
+
+	/**
+	 * Return the instruction index of a command, or -1 if it does not point
+	 * to an instruction.
+	 */
+	public int getCommand(int number) {
+		return commands[number];
+	}
+
+	/**
+	 * Return an instruction as found in the object file, before linking.
+	 */
+	public int getOpcode(int index) {
+		return opcodes[index];
+	}
+
+	/**
+	 * Return the type descriptors, which are placed at the start of the
+	 * data, followed by the variables and the strings.
+	 */
+	public int[] getTypeDescriptors() {
+		return typeDescriptors.clone();
+	}
+
+	/**
+	 * Return the word index (within the data) of the last type descriptor
+	 * word that needs a fixup, or 0; each one holds the distance to the
+	 * previous one in its lowest 12 bits.
+	 */
+	public int getTypeFixups() {
+		return typeFixups;
+	}
+
+	public int getVariableSize() {
+		return variableSize;
+	}
+
+	public byte[] getStringData() {
+		return stringData.clone();
+	}
+
+	/**
+	 * Return the name of a module by number (<code>MOD</code>); 0 is the
+	 * module itself, followed by its imports.
+	 */
+	public String getModuleName(int number) {
+		return moduleNames.get(number);
+	}
+
+	public int getModuleCount() {
+		return moduleNames.size();
+	}
+
+	/**
+	 * Return the number of lines printed for an instruction, including
+	 * annotations before it.
+	 */
+	public int getLineCount(int index) {
+		return annotationStart[index + 1] - annotationStart[index] + 1;
+	}
+
+	/**
+	 * Render one line of an instruction, as counted by
+	 * {@link #getLineCount(int)}.
+	 */
+	public void appendLine(StringBuilder sb, int index, int line) {
+		if (annotationStart[index] + line < annotationStart[index + 1]) {
+			int annotation = annotations[annotationStart[index] + line];
+			sb.append(INDENT);
+			if (annotation >= ANNOTATION_FIXUP)
+				sb.append(".FIXUP ").append(Fixup.VALUES[annotation - ANNOTATION_FIXUP].name());
+			else if (annotation == ANNOTATION_ENTRYPOINT)
+				sb.append(".ENTRYPOINT");
+			else if (annotation >= ANNOTATION_COMMAND)
+				sb.append(".COMMAND ").append(commandNames[annotation - ANNOTATION_COMMAND]);
+			else
+				sb.append(".PROC ").append(annotation);
+			return;
+		}
+		sb.append('(');
+		appendHex(sb, opcodes[index], 8);
+		sb.append("):    ");
+		appendOpcode(sb, index);
 	}
 }
@@ -1,14 +1,14 @@
 package oberonxref;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,10 +16,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import oberonxref.Symbol.SymbolType;
 
+/**
+ * Writes the HTML pages. Different pages may be written concurrently from
+ * several threads.
+ */
 public class HTMLBuilder {
 
 	public static void copyStream(InputStream in, OutputStream out) throws IOException {
@@ -30,206 +36,699 @@ public class HTMLBuilder {
 		}
 	}
 
-	private static String h(String unescaped) {
-		return unescaped.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
-	}
+	private static final byte[] SOURCE_LINE_START = HTMLWriter.fragment("<tr class=\"sl\"><th><a name=\"L_"),
+			SOURCE_LINE_HREF = HTMLWriter.fragment("\" href=\"#L_"),
+			SOURCE_LINE_DATA = HTMLWriter.fragment("\" data-l=\""),
+			SOURCE_LINE_END = HTMLWriter.fragment("\"></th><td>"),
+			LINE_END = HTMLWriter.fragment("</td></tr>\n"),
+			ANCHOR_NAME = HTMLWriter.fragment("<a name=\""),
+			ANCHOR_LOCAL_HREF = HTMLWriter.fragment("\" href=\"#"),
+			ANCHOR_HREF = HTMLWriter.fragment("<a href=\""),
+			STYLE = HTMLWriter.fragment(" style=\""),
+			SPAN_STYLE = HTMLWriter.fragment("<span style=\""),
+			ASSEMBLY_LINE_START = HTMLWriter.fragment("<tr class=\"al\"><th><a name=\"A_"),
+			ASSEMBLY_LINE_TEXT = HTMLWriter.fragment("</a></th><td><sup"),
+			ASSEMBLY_REF_START = HTMLWriter.fragment("<sub><s><u></u><b></b></s><a name=\"#AR_");
+
+	/** Rows with execution counts, which go into the header cell */
+	private static final byte[] PROFILED_SOURCE_LINE_START = HTMLWriter.fragment("<tr class=\"sl\"><th"),
+			PROFILED_ASSEMBLY_LINE_START = HTMLWriter.fragment("<tr class=\"al\"><th"),
+			SOURCE_LINE_ANCHOR = HTMLWriter.fragment("><a name=\"L_"),
+			ASSEMBLY_LINE_ANCHOR = HTMLWriter.fragment("><a name=\"A_"),
+			COMPACT_SOURCE_LINE_CELLS = HTMLWriter.fragment("></th><td>"),
+			HEAT_CLASS = HTMLWriter.fragment(" class=\"h"),
+			TITLE = HTMLWriter.fragment(" title=\"");
+
+	private static final byte[] COMPACT_SOURCE_LINE_START = HTMLWriter.fragment("<tr class=\"sl\"><th></th><td>"),
+			CLASS = HTMLWriter.fragment(" class=\""),
+			SPAN_CLASS = HTMLWriter.fragment("<span class=\""),
+			COMPACT_ASSEMBLY_LINE_START = HTMLWriter.fragment("<tr class=\"al\"><th>"),
+			COMPACT_ASSEMBLY_LINE_TEXT = HTMLWriter.fragment("</th><td><sup"),
+			COMPACT_ASSEMBLY_REF_START = HTMLWriter.fragment("<sub>"),
+			COMPACT_ASSEMBLY_REF_END = HTMLWriter.fragment("</sub>");
 
 	private final File directory;
+	private final SiteArchive archive;
+	private final boolean compact;
+	private int gzipLevel = -1;
+	private boolean keepUncompressed = true;
+	private final AtomicInteger pagesWritten = new AtomicInteger();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private Map<String, long[]> executionCounts = new HashMap<>();
+	private long totalExecutions;
 
 	public HTMLBuilder(File directory) {
+		this(directory, false);
+	}
+
+	/**
+	 * @param compact
+	 *            Use CSS classes instead of inline styles and leave line
+	 *            anchors and disassembly reference markup to script.js
+	 */
+	public HTMLBuilder(File directory, boolean compact) {
 		this.directory = directory;
+		this.archive = null;
+		this.compact = compact;
 	}
 
-	public void copyResource(String filename) throws IOException {
-		try (InputStream in = HTMLBuilder.class.getResourceAsStream("/" + filename);
-				OutputStream out = new FileOutputStream(new File(directory, filename))) {
-			copyStream(in, out);
+	/**
+	 * Write all pages into an archive instead of a directory.
+	 */
+	public HTMLBuilder(SiteArchive archive, boolean compact) {
+		this.directory = null;
+		this.archive = archive;
+		this.compact = compact;
+	}
+
+	/**
+	 * Write a gzip compressed <code>.gz</code> file for every page and
+	 * resource, in the same pass as the page itself.
+	 * 
+	 * @param level
+	 *            Deflater compression level (0-9)
+	 * @param keepUncompressed
+	 *            Whether to write the uncompressed files as well
+	 */
+	public void setCompression(int level, boolean keepUncompressed) {
+		this.gzipLevel = level;
+		this.keepUncompressed = keepUncompressed;
+	}
+
+	/**
+	 * Annotate main pages with the execution counts of their instructions,
+	 * by module, as counted by {@link Risc5Interpreter}.
+	 */
+	public void setProfile(Map<String, long[]> executionCounts) {
+		this.executionCounts = executionCounts;
+		totalExecutions = 0;
+		for (long[] counts : executionCounts.values()) {
+			for (long count : counts) {
+				totalExecutions += count;
+			}
 		}
 	}
 
-	public void writeMainFile(String module, List<Symbol> source, Disassembly disassembly) throws IOException {
-		TreeMap<Integer, List<Integer>> disassemblyRefs = new TreeMap<>();
-		Map<String, Set<String>> allExternalLinks = new HashMap<>();
-		if (disassembly != null) {
-			for (int i = 0; i < disassembly.codePositions.length; i++) {
-				int val = disassembly.codePositions[i];
-				disassemblyRefs.computeIfAbsent(val, k -> new ArrayList<>()).add(i);
+	private HTMLWriter openPage(String filename) throws IOException {
+		if (archive != null)
+			return new HTMLWriter(archive.openEntry(filename));
+		File file = new File(directory, filename);
+		if (gzipLevel == -1)
+			return new HTMLWriter(file);
+		OutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(HTMLWriter.openFile(new File(file.getPath() + ".gz"))), 65536) {
+			{
+				def.setLevel(gzipLevel);
 			}
+		};
+		return new HTMLWriter(keepUncompressed ? HTMLWriter.openFile(file) : null, gzip);
+	}
+
+	private List<File> getOutputFiles(String filename) {
+		if (archive != null)
+			throw new IllegalStateException("Pages in an archive cannot be checked");
+		List<File> result = new ArrayList<>();
+		if (gzipLevel == -1 || keepUncompressed)
+			result.add(new File(directory, filename));
+		if (gzipLevel != -1)
+			result.add(new File(directory, filename + ".gz"));
+		return result;
+	}
+
+	/**
+	 * Check whether any of the files written for this page is missing.
+	 */
+	public boolean isPageMissing(String filename) {
+		for (File file : getOutputFiles(filename)) {
+			if (!file.exists())
+				return true;
 		}
-		List<Integer> allCodePositions = new ArrayList<>(disassemblyRefs.keySet());
-		Map<Integer, Integer> mapCodePositionToIndex = new HashMap<>();
-		for (int i = 0; i < allCodePositions.size(); i++) {
-			mapCodePositionToIndex.put(allCodePositions.get(i), i);
+		return false;
+	}
+
+	public void deletePage(String filename) {
+		new File(directory, filename).delete();
+		new File(directory, filename + ".gz").delete();
+	}
+
+	private void countPage(HTMLWriter out) {
+		pagesWritten.incrementAndGet();
+		bytesWritten.addAndGet(out.getSize());
+	}
+
+	public int getPagesWritten() {
+		return pagesWritten.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public void copyResource(String filename) throws IOException {
+		try (InputStream in = HTMLBuilder.class.getResourceAsStream("/" + filename);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				HTMLWriter out = openPage(filename)) {
+			copyStream(in, baos);
+			out.write(baos.toByteArray());
 		}
-		for (Symbol sym : source) {
-			if (sym.getLink() != null && sym.getLink().contains(".html#") && !sym.getLink().contains("-usage.html#")) {
-				String[] parts = sym.getLink().split("\\.html#");
+	}
+
+	public void writeMainFile(String module, TokenBuffer source, Disassembly disassembly) throws IOException {
+		CodePositions refs = new CodePositions(disassembly != null ? disassembly.codePositions : new int[0]);
+		long[] counts = disassembly == null ? null : executionCounts.get(module);
+		if (counts != null && counts.length != disassembly.getInstructionCount())
+			counts = null;
+		ExecutionProfile profile = counts == null ? null : new ExecutionProfile(source, disassembly, counts);
+		Map<String, Set<String>> allExternalLinks = new HashMap<>();
+		for (int i = 0; i < source.size(); i++) {
+			String link = source.getLink(i);
+			if (link != null && link.contains(".html#") && !link.contains("-usage.html#")) {
+				String[] parts = link.split("\\.html#");
 				allExternalLinks.computeIfAbsent(parts[0], s -> new HashSet<>()).add(parts[1]);
 			}
 		}
-		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, module + ".html")), StandardCharsets.UTF_8))) {
-			bw.write("<!DOCTYPE html><html><head>\n");
-			bw.write("<meta charset=\"UTF-8\">\n");
-			bw.write("<title>" + h(module) + " &ndash; OberonXref</title>\n");
-			bw.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
-			bw.write("<script type=\"text/javascript\" src=\"script.js\"></script>\n");
-			bw.write("</head><body><h1>" + h(module) + "</h1><p id=\"togglebuttons\"></p>\n");
-			bw.write("<p class=\"usedexports\"><h2>Used Exports</h2>");
+		try (HTMLWriter out = openPage(module + ".html")) {
+			out.write("<!DOCTYPE html><html><head>\n");
+			out.write("<meta charset=\"UTF-8\">\n");
+			out.write("<title>");
+			out.escape(module);
+			out.write(" &ndash; OberonXref</title>\n");
+			out.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
+			out.write("<script type=\"text/javascript\" src=\"script.js\"></script>\n");
+			out.write("</head><body><h1>");
+			out.escape(module);
+			out.write("</h1><p id=\"togglebuttons\"></p>\n");
+			out.write("<p class=\"usedexports\"><h2>Used Exports</h2>");
 			List<String> allExternalLinkFiles = new ArrayList<>(allExternalLinks.keySet());
 			Collections.sort(allExternalLinkFiles);
 			for (String lf : allExternalLinkFiles) {
-				bw.write("<b>" + h(lf) + ":</b>");
+				out.write("<b>");
+				out.escape(lf);
+				out.write(":</b>");
 				List<String> links = new ArrayList<>(allExternalLinks.get(lf));
 				Collections.sort(links);
 				for (String link : links) {
-					bw.write(" <a name=\"X_" + h(lf) + "_" + h(link) + "\" href=\"" + h(lf) + ".html#" + h(link) + "\">" + h(link) + "</a>");
+					out.write(" <a name=\"X_");
+					out.escape(lf);
+					out.write('_');
+					out.escape(link);
+					out.write("\" href=\"");
+					out.escape(lf);
+					out.write(".html#");
+					out.escape(link);
+					out.write("\">");
+					out.escape(link);
+					out.write("</a>");
 				}
-				bw.write("<br>");
+				out.write("<br>");
 			}
-			bw.write("</p>\n");
-			bw.write("<table class=\"sourcecode showsource" + (disassembly != null ? " assemblypresent" : "") + "\">\n");
+			out.write("</p>\n");
+			if (profile != null)
+				writeProfile(out, profile);
+			out.write("<table class=\"sourcecode showsource" + (disassembly != null ? " assemblypresent" : "") + (compact ? " compact" : "") + "\">\n");
 			int[] assemblyOffsets = new int[] { -1, -1, -1 };
+			StringBuilder asmLine = new StringBuilder();
 			int sourceLine = 1, sourcePos = 0, sourceCharPos = 0;
-			int nextAssemblyCharPos = disassemblyRefs.isEmpty() ? Integer.MAX_VALUE : disassemblyRefs.firstKey();
+			int nextRef = 0;
+			int nextAssemblyCharPos = refs.getPosition(nextRef);
 			while (sourcePos < source.size()) {
-				bw.write("<tr class=\"sl\"><th><a name=\"L_" + sourceLine + "\" href=\"#L_" + sourceLine + "\" data-l=\"" + sourceLine + "\"></th><td>");
+				if (profile != null && profile.isAnnotated(sourceLine)) {
+					out.write(PROFILED_SOURCE_LINE_START);
+					writeHeat(out, profile, profile.getLineCount(sourceLine), profile.getProcedureAt(sourceLine));
+					out.write(compact ? COMPACT_SOURCE_LINE_CELLS : SOURCE_LINE_ANCHOR);
+				} else if (compact) {
+					out.write(COMPACT_SOURCE_LINE_START);
+				} else {
+					out.write(SOURCE_LINE_START);
+				}
+				if (!compact) {
+					out.writeInt(sourceLine);
+					out.write(SOURCE_LINE_HREF);
+					out.writeInt(sourceLine);
+					out.write(SOURCE_LINE_DATA);
+					out.writeInt(sourceLine);
+					out.write(SOURCE_LINE_END);
+				}
 				sourceLine++;
 				while (sourcePos < source.size()) {
-					Symbol s = source.get(sourcePos);
+					int s = sourcePos;
 					sourcePos++;
 					String endTag = "";
 					if (nextAssemblyCharPos == sourceCharPos) {
-						writeDisassemblyRefs(bw, mapCodePositionToIndex.get(nextAssemblyCharPos), disassemblyRefs.remove(nextAssemblyCharPos), assemblyOffsets);
-						nextAssemblyCharPos = disassemblyRefs.isEmpty() ? Integer.MAX_VALUE : disassemblyRefs.firstKey();
+						writeDisassemblyRefs(out, nextRef, refs.lastInstructions[nextRef], assemblyOffsets);
+						nextAssemblyCharPos = refs.getPosition(++nextRef);
 					}
-					if (s.getLink() != null) {
-						String href = "href=\"" + h(s.getLink()) + "\"";
-						if (s.getLink().startsWith("=")) {
-							href = "name=\"" + h(s.getLink().substring(1)) + "\" href=\"#" + h(s.getLink().substring(1)) + "\"";
+					String link = source.getLink(s), css = compact ? source.getCSSClass(s) : source.getCSS(s);
+					if (link != null) {
+						if (link.startsWith("=")) {
+							out.write(ANCHOR_NAME);
+							out.escape(link, 1, link.length());
+							out.write(ANCHOR_LOCAL_HREF);
+							out.escape(link, 1, link.length());
+						} else {
+							out.write(ANCHOR_HREF);
+							out.escapeCached(link);
+						}
+						out.write('"');
+						if (!css.isEmpty()) {
+							out.write(compact ? CLASS : STYLE);
+							out.escapeCached(css);
+							out.write('"');
 						}
-						if (!s.getCSS().isEmpty())
-							href += " style=\"" + h(s.getCSS()) + "\"";
-						bw.write("<a " + href + ">");
+						out.write('>');
 						endTag = "</a>";
-					} else if (!s.getCSS().isEmpty()) {
-						bw.write("<span style=\"" + h(s.getCSS()) + "\">");
+					} else if (!css.isEmpty()) {
+						out.write(compact ? SPAN_CLASS : SPAN_STYLE);
+						out.escapeCached(css);
+						out.write("\">");
 						endTag = "</span>";
 					}
-					String textToPrint = s.getText();
-					while (nextAssemblyCharPos < sourceCharPos + textToPrint.length()) {
+					ByteBuffer text = source.getSource();
+					int textPos = source.getStart(s), textEnd = textPos + source.getLength(s);
+					while (nextAssemblyCharPos < sourceCharPos + textEnd - textPos) {
 						int prefixLen = nextAssemblyCharPos - sourceCharPos;
-						if (!textToPrint.substring(0, prefixLen).equals("\n"))
-							bw.write(h(textToPrint.substring(0, prefixLen)));
-						textToPrint = textToPrint.substring(prefixLen);
+						if (prefixLen != 1 || text.get(textPos) != '\n')
+							out.escapeLatin1(text, textPos, textPos + prefixLen);
+						textPos += prefixLen;
 						sourceCharPos += prefixLen;
-						writeDisassemblyRefs(bw, mapCodePositionToIndex.get(nextAssemblyCharPos), disassemblyRefs.remove(nextAssemblyCharPos), assemblyOffsets);
-						nextAssemblyCharPos = disassemblyRefs.isEmpty() ? Integer.MAX_VALUE : disassemblyRefs.firstKey();
+						writeDisassemblyRefs(out, nextRef, refs.lastInstructions[nextRef], assemblyOffsets);
+						nextAssemblyCharPos = refs.getPosition(++nextRef);
 					}
-					sourceCharPos += textToPrint.length();
-					if (!textToPrint.equals("\n"))
-						bw.write(h(textToPrint));
+					sourceCharPos += textEnd - textPos;
+					if (textEnd - textPos != 1 || text.get(textPos) != '\n')
+						out.escapeLatin1(text, textPos, textEnd);
 					if (sourcePos == source.size()) {
 						if (nextAssemblyCharPos == sourceCharPos) {
-							writeDisassemblyRefs(bw, mapCodePositionToIndex.get(nextAssemblyCharPos), disassemblyRefs.remove(nextAssemblyCharPos), assemblyOffsets);
-							nextAssemblyCharPos = disassemblyRefs.isEmpty() ? Integer.MAX_VALUE : disassemblyRefs.firstKey();
+							writeDisassemblyRefs(out, nextRef, refs.lastInstructions[nextRef], assemblyOffsets);
+							nextAssemblyCharPos = refs.getPosition(++nextRef);
 						}
 					}
-					bw.write(endTag);
-					if (s.getType() == SymbolType.SKIP_LINEBREAK) {
+					out.write(endTag);
+					if (source.getType(s) == SymbolType.SKIP_LINEBREAK) {
 						break;
 					}
 				}
-				bw.write("</td></tr>\n");
+				out.write(LINE_END);
 				if (disassembly != null && assemblyOffsets[2] == -1) {
 					assemblyOffsets[2] = 0;
-					printAssembly(bw, -1, null, -1, disassembly.introductionLines.toArray(new String[disassembly.introductionLines.size()]));
+					for (int i = 0; i < disassembly.introductionLines.size(); i++) {
+						printAssembly(out, -1, -1, -1, i + 1, disassembly.introductionLines.get(i), 0);
+					}
 				}
 				while (assemblyOffsets[1] < assemblyOffsets[0]) {
 					assemblyOffsets[1]++;
-					printAssembly(bw, assemblyOffsets[1], mapCodePositionToIndex, disassembly.codePositions[assemblyOffsets[1]], disassembly.codeLines[assemblyOffsets[1]]);
+					printInstruction(out, disassembly, assemblyOffsets[1], refs.letterIndices[assemblyOffsets[1]], asmLine, counts);
 				}
 			}
-			while (disassembly != null && assemblyOffsets[1] < disassembly.codeLines.length - 1) {
+			while (disassembly != null && assemblyOffsets[1] < disassembly.getInstructionCount() - 1) {
 				assemblyOffsets[1]++;
-				printAssembly(bw, assemblyOffsets[1], mapCodePositionToIndex, disassembly.codePositions[assemblyOffsets[1]], disassembly.codeLines[assemblyOffsets[1]]);
+				printInstruction(out, disassembly, assemblyOffsets[1], refs.letterIndices[assemblyOffsets[1]], asmLine, counts);
 			}
-			if (!disassemblyRefs.isEmpty())
-				throw new RuntimeException(sourceCharPos + "/" + disassemblyRefs);
-			bw.write("</table></body></html>\n");
+			if (nextRef < refs.size())
+				throw new RuntimeException(sourceCharPos + "/" + Arrays.toString(Arrays.copyOfRange(refs.positions, nextRef, refs.size())));
+			out.write("</table></body></html>\n");
+			countPage(out);
 		}
 	}
 
-	private void writeDisassemblyRefs(BufferedWriter bw, int letterIndex, List<Integer> disasmRefs, int[] assemblyOffsets) throws IOException {
-		for (Integer ref : disasmRefs) {
-			if (assemblyOffsets[0] < ref)
-				assemblyOffsets[0] = ref;
+	private void writeDisassemblyRefs(HTMLWriter out, int letterIndex, int lastInstruction, int[] assemblyOffsets) throws IOException {
+		if (assemblyOffsets[0] < lastInstruction)
+			assemblyOffsets[0] = lastInstruction;
+		if (compact) {
+			out.write(COMPACT_ASSEMBLY_REF_START);
+			out.writeInt(letterIndex);
+			out.write(COMPACT_ASSEMBLY_REF_END);
+			return;
 		}
-		bw.write("<sub><s><u></u><b></b></s><a name=\"#AR_" + letterIndex + "\" href=\"#AR_" + letterIndex + "\">" + (char) ('a' + letterIndex % 26) + "</a></sub>");
+		out.write(ASSEMBLY_REF_START);
+		out.writeInt(letterIndex);
+		out.write("\" href=\"#AR_");
+		out.writeInt(letterIndex);
+		out.write("\">");
+		out.write('a' + letterIndex % 26);
+		out.write("</a></sub>");
 	}
 
-	private void printAssembly(BufferedWriter bw, int offset, Map<Integer, Integer> mapCodePositionToIndex, int position, String[] asmLines) throws IOException {
-		int letterIndex = mapCodePositionToIndex == null ? -1 : mapCodePositionToIndex.get(position);
-		String hexOffset = offset == -1 ? "    " : String.format("%04X", offset);
-		for (int i = 0; i < asmLines.length; i++) {
-			bw.write("<tr class=\"al\"><th><a name=\"A_" + hexOffset + "_" + (i + 1) + "\" href=\"#A_" + hexOffset + "_" + (i + 1) + "\">" + hexOffset + "</a></th><td><sup");
-			if (position != -1)
-				bw.write(" title=\"" + position + "\"");
-			bw.write(">");
-			if (letterIndex == -1)
-				bw.write(" ");
+	/**
+	 * @param counts
+	 *            Execution counts of the instructions, or <code>null</code>
+	 */
+	private void printInstruction(HTMLWriter out, Disassembly disassembly, int offset, int letterIndex, StringBuilder asmLine, long[] counts) throws IOException {
+		int lineCount = disassembly.getLineCount(offset);
+		for (int i = 0; i < lineCount; i++) {
+			asmLine.setLength(0);
+			disassembly.appendLine(asmLine, offset, i);
+			// annotations come first, the instruction itself is on the last line
+			long count = counts != null && i == lineCount - 1 ? counts[offset] : 0;
+			printAssembly(out, offset, letterIndex, disassembly.codePositions[offset], i + 1, asmLine, count);
+		}
+	}
+
+	private void printAssembly(HTMLWriter out, int offset, int letterIndex, int position, int lineNumber, CharSequence asmLine, long count) throws IOException {
+		if (count != 0) {
+			out.write(PROFILED_ASSEMBLY_LINE_START);
+			writeHeat(out, null, count, -1);
+		}
+		if (compact) {
+			if (count == 0)
+				out.write(COMPACT_ASSEMBLY_LINE_START);
 			else
-				bw.write("<a href=\"#AR_" + letterIndex + "\">" + (char) ('a' + letterIndex % 26) + "</a>");
-			bw.write("</sup>" + h(asmLines[i]) + "</td></tr>\n");
+				out.write('>');
+			writeHexOffset(out, offset);
+			out.write(COMPACT_ASSEMBLY_LINE_TEXT);
+		} else {
+			out.write(count == 0 ? ASSEMBLY_LINE_START : ASSEMBLY_LINE_ANCHOR);
+			writeHexOffset(out, offset);
+			out.write('_');
+			out.writeInt(lineNumber);
+			out.write("\" href=\"#A_");
+			writeHexOffset(out, offset);
+			out.write('_');
+			out.writeInt(lineNumber);
+			out.write("\">");
+			writeHexOffset(out, offset);
+			out.write(ASSEMBLY_LINE_TEXT);
+		}
+		if (compact) {
+			// <sup>position:letterIndex</sup>, expanded by script.js
+			out.write('>');
+			if (position != -1)
+				out.writeInt(position);
+			out.write(':');
+			if (letterIndex != -1)
+				out.writeInt(letterIndex);
+			out.write("</sup>");
+			out.escape(asmLine);
+			out.write(LINE_END);
+			return;
+		}
+		if (position != -1) {
+			out.write(" title=\"");
+			out.writeInt(position);
+			out.write('"');
+		}
+		out.write('>');
+		if (letterIndex == -1) {
+			out.write(' ');
+		} else {
+			out.write("<a href=\"#AR_");
+			out.writeInt(letterIndex);
+			out.write("\">");
+			out.write('a' + letterIndex % 26);
+			out.write("</a>");
+		}
+		out.write("</sup>");
+		out.escape(asmLine);
+		out.write(LINE_END);
+	}
+
+	/**
+	 * Write the procedures with the most executed instructions first.
+	 */
+	private void writeProfile(HTMLWriter out, ExecutionProfile profile) throws IOException {
+		List<Integer> procedures = new ArrayList<>();
+		for (int procedure = 0; procedure < profile.procedureCounts.length; procedure++) {
+			if (profile.procedureCounts[procedure] != 0)
+				procedures.add(procedure);
+		}
+		procedures.sort((p1, p2) -> Long.compare(profile.procedureCounts[p2], profile.procedureCounts[p1]));
+		out.write("<h2>Profile</h2><p>");
+		for (int procedure : procedures) {
+			out.write("<a href=\"#");
+			out.escape(profile.anchors[procedure]);
+			out.write("\">");
+			out.escape(profile.anchors[procedure]);
+			out.write("</a>: ");
+			writeExecutions(out, profile.procedureCounts[procedure]);
+			out.write("<br>");
+		}
+		out.write("</p>\n");
+	}
+
+	/**
+	 * Write the heat class and the title of a header cell, for an execution
+	 * count and the total of the procedure declared on the line, if any.
+	 * Heat levels go from 1 (less than 0.01% of all executions) to 5 (10% or
+	 * more).
+	 */
+	private void writeHeat(HTMLWriter out, ExecutionProfile profile, long count, int procedure) throws IOException {
+		if (count != 0) {
+			int level = 1;
+			for (long share = count * 10000; level < 5 && share >= totalExecutions; share /= 10)
+				level++;
+			out.write(HEAT_CLASS);
+			out.writeInt(level);
+			out.write('"');
 		}
+		out.write(TITLE);
+		if (count != 0)
+			writeExecutions(out, count);
+		if (procedure != -1) {
+			if (count != 0)
+				out.write("; ");
+			out.escape(profile.anchors[procedure]);
+			out.write(": ");
+			writeExecutions(out, profile.procedureCounts[procedure]);
+		}
+		out.write('"');
+	}
+
+	private void writeExecutions(HTMLWriter out, long count) throws IOException {
+		out.write(Long.toString(count));
+		out.write(count == 1 ? " execution" : " executions");
+		int permille = (int) ((count * 1000 + totalExecutions / 2) / totalExecutions);
+		out.write(" (");
+		out.writeInt(permille / 10);
+		out.write('.');
+		out.writeInt(permille % 10);
+		out.write("%)");
 	}
 
-	public void writeUsageFile(String module, Map<String, Set<String>> usageRefs) throws IOException {
+	private static void writeHexOffset(HTMLWriter out, int offset) throws IOException {
+		if (offset == -1)
+			out.write("    ");
+		else
+			out.writeHex4(offset);
+	}
+
+	public void writeUsageFile(String module, Map<String, Set<String>> usageRefs, CallGraph callGraph) throws IOException {
 		List<String> exports = new ArrayList<>(usageRefs.keySet());
 		Collections.sort(exports);
-		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, module + "-usage.html")), StandardCharsets.UTF_8))) {
-			bw.write("<!DOCTYPE html><html><head>\n");
-			bw.write("<meta charset=\"UTF-8\">\n");
-			bw.write("<title>" + h(module) + " Usage &ndash; OberonXref</title>\n");
-			bw.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
-			bw.write("</head><body><h1>" + h(module) + " Usage</h1>\n");
+		try (HTMLWriter out = openPage(module + "-usage.html")) {
+			out.write("<!DOCTYPE html><html><head>\n");
+			out.write("<meta charset=\"UTF-8\">\n");
+			out.write("<title>");
+			out.escape(module);
+			out.write(" Usage &ndash; OberonXref</title>\n");
+			out.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
+			out.write("</head><body><h1>");
+			out.escape(module);
+			out.write(" Usage</h1>\n");
 			for (String export : exports) {
-				bw.write("<h2><a name=\"" + h(export) + "\">" + h(export) + "</a></h2><ul>");
+				out.write("<h2><a name=\"");
+				out.escape(export);
+				out.write("\">");
+				out.escape(export);
+				out.write("</a></h2><ul>");
 				List<String> usages = new ArrayList<>(usageRefs.get(export));
 				Collections.sort(usages);
 				for (String usage : usages) {
-					String usageMod = usage.replaceFirst("\\.html$", "");
-					bw.write("<li><a href=\"" + h(usage) + "#X_" + h(module) + "_" + h(export) + "\">" + h(usageMod) + "</a></li>");
+					out.write("<li><a href=\"");
+					out.escapeCached(usage);
+					out.write("#X_");
+					out.escapeCached(module);
+					out.write('_');
+					out.escape(export);
+					out.write("\">");
+					out.escapeCached(usage.endsWith(".html") ? usage.substring(0, usage.length() - 5) : usage);
+					out.write("</a></li>");
 				}
-				bw.write("</ul>\n");
+				out.write("</ul>\n");
 			}
-			bw.write("</body></html>\n");
+			int procedure = callGraph.getFirstProcedure(module);
+			if (procedure < callGraph.getProcedureCount())
+				out.write("<h2>Calls</h2>\n");
+			for (; procedure < callGraph.getProcedureCount() && callGraph.getModule(procedure).equals(module); procedure++) {
+				out.write("<h3>");
+				writeProcedureLink(out, callGraph, procedure, module);
+				out.write("</h3><p>Calls:");
+				for (int i = 0; i < callGraph.getCalleeCount(procedure); i++) {
+					out.write(i == 0 ? " " : ", ");
+					writeProcedureLink(out, callGraph, callGraph.getCallee(procedure, i), module);
+				}
+				out.write("<br>Called by:");
+				for (int i = 0; i < callGraph.getCallerCount(procedure); i++) {
+					out.write(i == 0 ? " " : ", ");
+					writeProcedureLink(out, callGraph, callGraph.getCaller(procedure, i), module);
+				}
+				out.write("</p>\n");
+			}
+			out.write("</body></html>\n");
+			countPage(out);
+		}
+	}
+
+	private static void writeProcedureLink(HTMLWriter out, CallGraph callGraph, int procedure, String module) throws IOException {
+		String procedureModule = callGraph.getModule(procedure), anchor = callGraph.getAnchor(procedure);
+		out.write("<a href=\"");
+		out.escapeCached(procedureModule);
+		out.write(".html#");
+		out.escapeCached(anchor);
+		out.write("\">");
+		if (!procedureModule.equals(module)) {
+			out.escapeCached(procedureModule);
+			out.write('.');
 		}
+		out.escapeCached(anchor);
+		out.write("</a>");
 	}
 
 	public void writeIndexFile(Collection<String> modules, Map<String, List<String>> importedModules) throws IOException {
 		List<String> sortedModules = new ArrayList<>(modules);
 		Collections.sort(sortedModules);
-		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, "index.html")), StandardCharsets.UTF_8))) {
-			bw.write("<!DOCTYPE html><html><head>\n");
-			bw.write("<meta charset=\"UTF-8\">\n");
-			bw.write("<title>OberonXref</title>\n");
-			bw.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
-			bw.write("</head><body><h1>OberonXref</h1>\n");
+		try (HTMLWriter out = openPage("index.html")) {
+			out.write("<!DOCTYPE html><html><head>\n");
+			out.write("<meta charset=\"UTF-8\">\n");
+			out.write("<title>OberonXref</title>\n");
+			out.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\">\n");
+			out.write("</head><body><h1>OberonXref</h1>\n");
 			for (String module : sortedModules) {
 				if (module.equals("BUILTINS") || module.equals("SYSTEM"))
 					continue;
-				bw.write("<p><b><a href=\"" + h(module) + ".html\">" + h(module) + "</a></b>");
+				out.write("<p><b><a href=\"");
+				out.escape(module);
+				out.write(".html\">");
+				out.escape(module);
+				out.write("</a></b>");
 				List<String> imported = importedModules.get(module);
 				if (!imported.isEmpty()) {
-					bw.write(" (Imports:");
+					out.write(" (Imports:");
 					for (String imp : imported) {
-						bw.write(" <a href=\"" + h(imp) + ".html\">" + h(imp) + "</a></b>");
+						out.write(" <a href=\"");
+						out.escapeCached(imp);
+						out.write(".html\">");
+						out.escapeCached(imp);
+						out.write("</a></b>");
 					}
-					bw.write(")");
+					out.write(")");
+				}
+				out.write("</p>\n");
+			}
+			out.write("</body></html>\n");
+			countPage(out);
+		}
+	}
+
+	/**
+	 * Execution counts of a module summed up by source line and by procedure.
+	 * Instructions belong to the line of their code position, and procedures
+	 * of the control flow graph to the innermost declaration around their
+	 * first instruction. Procedure 0 is the code outside of declarations;
+	 * procedure <code>p + 1</code> is declaration <code>p</code>.
+	 */
+	private static class ExecutionProfile {
+		private final long[] lineCounts, procedureCounts;
+		private final int[] lineProcedures;
+		private final String[] anchors;
+
+		private ExecutionProfile(TokenBuffer source, Disassembly disassembly, long[] counts) {
+			// line starts, counted like writeMainFile does
+			int[] lineStarts = new int[source.size() + 2];
+			int lines = 1;
+			for (int s = 0; s < source.size(); s++) {
+				if (source.getType(s) == SymbolType.SKIP_LINEBREAK)
+					lineStarts[++lines] = source.getStart(s) + source.getLength(s);
+			}
+			lineStarts = Arrays.copyOfRange(lineStarts, 0, lines + 1);
+			lineCounts = new long[lines + 1];
+			for (int i = 0; i < counts.length; i++) {
+				lineCounts[findLine(lineStarts, disassembly.codePositions[i])] += counts[i];
+			}
+			CallGraph.ProcedureDeclarations declarations = new CallGraph.ProcedureDeclarations(source);
+			procedureCounts = new long[source.getProcedureCount() + 1];
+			ControlFlowGraph cfg = disassembly.buildControlFlowGraph();
+			for (int p = 0; p < cfg.getProcedureCount(); p++) {
+				int procedure = declarations.findDeclaration(disassembly.codePositions[cfg.getProcedureStart(p)]) + 1;
+				for (int i = cfg.getProcedureStart(p); i < cfg.getProcedureEnd(p); i++) {
+					procedureCounts[procedure] += counts[i];
+				}
+			}
+			anchors = new String[procedureCounts.length];
+			lineProcedures = new int[lines + 1];
+			Arrays.fill(lineProcedures, -1);
+			anchors[0] = declarations.getAnchor(-1);
+			for (int s = 0; s < source.size(); s++) {
+				if (("=" + anchors[0]).equals(source.getLink(s))) {
+					lineProcedures[findLine(lineStarts, source.getStart(s))] = 0;
+					break;
 				}
-				bw.write("</p>\n");
 			}
-			bw.write("</body></html>\n");
+			for (int p = 0; p < source.getProcedureCount(); p++) {
+				anchors[p + 1] = declarations.getAnchor(p);
+				lineProcedures[findLine(lineStarts, source.getStart(source.getProcedureName(p)))] = p + 1;
+			}
+		}
+
+		private static int findLine(int[] lineStarts, int position) {
+			int line = Arrays.binarySearch(lineStarts, 1, lineStarts.length, position);
+			return line >= 0 ? line : -line - 2;
+		}
+
+		private boolean isAnnotated(int line) {
+			return lineCounts[line] != 0 || getProcedureAt(line) != -1;
+		}
+
+		private long getLineCount(int line) {
+			return lineCounts[line];
+		}
+
+		/**
+		 * Return the executed procedure declared on a line, or -1.
+		 */
+		private int getProcedureAt(int line) {
+			int procedure = lineProcedures[line];
+			return procedure != -1 && procedureCounts[procedure] != 0 ? procedure : -1;
+		}
+	}
+
+	/**
+	 * Distinct code positions of a disassembly in ascending order, found by
+	 * sorting (position, instruction) pairs packed into longs, so that
+	 * source and disassembly can be merged in one linear pass.
+	 */
+	private static class CodePositions {
+		private final int[] positions, lastInstructions, letterIndices;
+		private final int size;
+
+		private CodePositions(int[] codePositions) {
+			long[] order = new long[codePositions.length];
+			for (int i = 0; i < codePositions.length; i++) {
+				order[i] = ((long) codePositions[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			positions = new int[order.length];
+			lastInstructions = new int[order.length];
+			letterIndices = new int[order.length];
+			int count = 0;
+			for (long entry : order) {
+				int position = (int) (entry >> 32), instruction = (int) entry;
+				if (count == 0 || positions[count - 1] != position)
+					positions[count++] = position;
+				lastInstructions[count - 1] = instruction;
+				letterIndices[instruction] = count - 1;
+			}
+			size = count;
+		}
+
+		private int size() {
+			return size;
+		}
+
+		/**
+		 * Return the position with the given index, or
+		 * <code>Integer.MAX_VALUE</code> after the last one.
+		 */
+		private int getPosition(int index) {
+			return index < size ? positions[index] : Integer.MAX_VALUE;
 		}
 	}
 }
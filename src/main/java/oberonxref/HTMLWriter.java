@@ -0,0 +1,323 @@
+package oberonxref;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writer that encodes its output as UTF-8 into a reused byte buffer and can
+ * HTML-escape text in the same pass. Escaped and encoded forms of strings
+ * written with {@link #escapeCached(String)} are kept, since link targets
+ * repeat a lot within one page. Latin-1 source text and prebuilt markup
+ * fragments are copied as bytes without going through a charset encoder.
+ */
+public class HTMLWriter extends Writer {
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/** Escaped UTF-8 encoding of every Latin-1 character */
+	private static final byte[][] ESCAPED_LATIN1 = new byte[256][];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			String escaped = String.valueOf((char) i);
+			if (i == '&')
+				escaped = "&amp;";
+			else if (i == '<')
+				escaped = "&lt;";
+			else if (i == '>')
+				escaped = "&gt;";
+			else if (i == '"')
+				escaped = "&quot;";
+			ESCAPED_LATIN1[i] = escaped.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Encode a markup fragment once, to be written by {@link #write(byte[])}.
+	 */
+	public static byte[] fragment(String markup) {
+		return markup.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private final WritableByteChannel channel;
+	private final OutputStream compressed;
+	private final byte[] buffer = new byte[262144];
+	private final ByteBuffer wrappedBuffer = ByteBuffer.wrap(buffer);
+	private int pos = 0;
+	private long drained = 0;
+	private final Map<String, byte[]> escapedCache = new HashMap<>();
+
+	public HTMLWriter(WritableByteChannel channel) {
+		this(channel, null);
+	}
+
+	/**
+	 * @param channel
+	 *            Channel for the plain output, or <code>null</code>
+	 * @param compressed
+	 *            Compressing stream (like {@link java.util.zip.GZIPOutputStream})
+	 *            that receives the same output, or <code>null</code>
+	 */
+	public HTMLWriter(WritableByteChannel channel, OutputStream compressed) {
+		this.channel = channel;
+		this.compressed = compressed;
+	}
+
+	public HTMLWriter(File file) throws IOException {
+		this(openFile(file));
+	}
+
+	public static FileChannel openFile(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Write bytes that are already UTF-8 encoded.
+	 */
+	public void write(byte[] bytes) throws IOException {
+		if (pos + bytes.length > buffer.length) {
+			flushBuffer();
+			if (bytes.length > buffer.length) {
+				drain(bytes, bytes.length);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (pos + 4 > buffer.length)
+			flushBuffer();
+		encode((char) c);
+	}
+
+	@Override
+	public void write(String str) throws IOException {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		encode(str, off, len);
+	}
+
+	private void encode(CharSequence str, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			if (pos + 4 > buffer.length)
+				flushBuffer();
+			char c = str.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < off + len && Character.isLowSurrogate(str.charAt(i + 1))) {
+				encodeCodePoint(Character.toCodePoint(c, str.charAt(++i)));
+			} else {
+				encode(c);
+			}
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		write(new String(cbuf, off, len));
+	}
+
+	/**
+	 * Write text with <code>&amp;</code>, <code>&lt;</code>,
+	 * <code>&gt;</code> and <code>&quot;</code> escaped.
+	 */
+	public void escape(CharSequence str) throws IOException {
+		escape(str, 0, str.length());
+	}
+
+	public void escape(CharSequence str, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			char c = str.charAt(i);
+			if (c >= 256) {
+				escapeUnicode(str, i, end);
+				return;
+			}
+			if (pos + 6 > buffer.length)
+				flushBuffer();
+			if (c < 0x80 && c != '&' && c != '<' && c != '>' && c != '"') {
+				buffer[pos++] = (byte) c;
+			} else {
+				byte[] escaped = ESCAPED_LATIN1[c];
+				System.arraycopy(escaped, 0, buffer, pos, escaped.length);
+				pos += escaped.length;
+			}
+		}
+	}
+
+	/**
+	 * Write escaped text from a Latin-1 encoded buffer, without decoding it.
+	 */
+	public void escapeLatin1(ByteBuffer source, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			if (pos + 6 > buffer.length)
+				flushBuffer();
+			int b = source.get(i) & 0xFF;
+			if (b < 0x80 && b != '&' && b != '<' && b != '>' && b != '"') {
+				buffer[pos++] = (byte) b;
+			} else {
+				byte[] escaped = ESCAPED_LATIN1[b];
+				System.arraycopy(escaped, 0, buffer, pos, escaped.length);
+				pos += escaped.length;
+			}
+		}
+	}
+
+	private void escapeUnicode(CharSequence str, int start, int end) throws IOException {
+		int plain = start;
+		for (int i = start; i < end; i++) {
+			String entity;
+			switch (str.charAt(i)) {
+			case '&':
+				entity = "&amp;";
+				break;
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '"':
+				entity = "&quot;";
+				break;
+			default:
+				continue;
+			}
+			encode(str, plain, i - plain);
+			write(entity);
+			plain = i + 1;
+		}
+		encode(str, plain, end - plain);
+	}
+
+	/**
+	 * Like {@link #escape(String)}, but remember the encoded result for the
+	 * next time the same string is written.
+	 */
+	public void escapeCached(String str) throws IOException {
+		byte[] encoded = escapedCache.get(str);
+		if (encoded == null && str.length() * 6 > buffer.length) {
+			escape(str);
+			return;
+		} else if (encoded == null) {
+			// make sure the escaped string ends up in the buffer in one piece
+			if (pos + str.length() * 6 > buffer.length)
+				flushBuffer();
+			int start = pos;
+			escape(str);
+			encoded = new byte[pos - start];
+			System.arraycopy(buffer, start, encoded, 0, encoded.length);
+			escapedCache.put(str, encoded);
+			return;
+		}
+		if (pos + encoded.length > buffer.length)
+			flushBuffer();
+		System.arraycopy(encoded, 0, buffer, pos, encoded.length);
+		pos += encoded.length;
+	}
+
+	public void writeInt(int value) throws IOException {
+		if (value < 0) {
+			write(Integer.toString(value));
+			return;
+		}
+		if (value >= 10)
+			writeInt(value / 10);
+		write('0' + value % 10);
+	}
+
+	/**
+	 * Write a value as at least four uppercase hex digits, like
+	 * <code>String.format("%04X", value)</code> does.
+	 */
+	public void writeHex4(int value) throws IOException {
+		int shift = 12;
+		while (shift < 28 && (value >>> (shift + 4)) != 0)
+			shift += 4;
+		for (; shift >= 0; shift -= 4) {
+			write(HEX_DIGITS[(value >>> shift) & 0xF]);
+		}
+	}
+
+	private void encode(char c) {
+		if (c < 0x80) {
+			buffer[pos++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[pos++] = (byte) (0xC0 | (c >> 6));
+			buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isSurrogate(c)) {
+			// unpaired surrogate, like the UTF-8 charset encoder
+			buffer[pos++] = (byte) '?';
+		} else {
+			buffer[pos++] = (byte) (0xE0 | (c >> 12));
+			buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void encodeCodePoint(int cp) {
+		buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+		buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+		buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+		buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+	}
+
+	/**
+	 * Return the number of bytes written so far, before compression.
+	 */
+	public long getSize() {
+		return drained + pos;
+	}
+
+	private void flushBuffer() throws IOException {
+		drain(buffer, pos);
+		pos = 0;
+	}
+
+	private void drain(byte[] bytes, int length) throws IOException {
+		drained += length;
+		if (channel != null) {
+			ByteBuffer bb = bytes == buffer ? wrappedBuffer : ByteBuffer.wrap(bytes);
+			((Buffer) bb).clear();
+			((Buffer) bb).limit(length);
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+		}
+		if (compressed != null)
+			compressed.write(bytes, 0, length);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			try {
+				if (compressed != null)
+					compressed.close();
+			} finally {
+				if (channel != null)
+					channel.close();
+			}
+		}
+	}
+}
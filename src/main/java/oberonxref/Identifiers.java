@@ -0,0 +1,144 @@
+package oberonxref;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Intern table of identifier names, shared by all modules of a run. Every
+ * distinct name gets a positive integer id, which is used as key in
+ * {@link Scope}, and all modules share the same {@link String} instance for
+ * it. Id 0 is never assigned.
+ *
+ * The table is split into stripes by hash, each with its own lock, so that
+ * modules can be scanned in parallel. The low bits of an id select the
+ * stripe, the remaining bits are the position within the stripe.
+ */
+public class Identifiers {
+
+	private static final int STRIPE_BITS = 6;
+	private static final String[] PSEUDO_NAMES = { "^", "[]", ".", "()" };
+	private static final Identifiers PSEUDO = new Identifiers();
+
+	/** Target scope of a pointer type */
+	public static final int DEREFERENCE = PSEUDO.intern("^");
+
+	/** Element scope of an array type */
+	public static final int ARRAY_ELEMENT = PSEUDO.intern("[]");
+
+	/** Marker of record types, referring to the record scope itself */
+	public static final int RECORD = PSEUDO.intern(".");
+
+	/** Result scope of a procedure type */
+	public static final int CALL_RESULT = PSEUDO.intern("()");
+
+	private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+	/**
+	 * Create an empty table; the names of the pseudo identifiers get the same
+	 * ids in every table.
+	 */
+	public Identifiers() {
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(i);
+		}
+		for (String name : PSEUDO_NAMES) {
+			intern(name);
+		}
+	}
+
+	public int intern(String name) {
+		int hash = name.hashCode();
+		return stripe(hash).intern(hash, name);
+	}
+
+	/**
+	 * Intern an identifier directly from an ISO-8859-1 source buffer, without
+	 * decoding it unless the name is new.
+	 */
+	public int intern(ByteBuffer source, int start, int length) {
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + (source.get(start + i) & 0xFF);
+		}
+		return stripe(hash).intern(hash, source, start, length);
+	}
+
+	public String getName(int id) {
+		return stripes[id & (stripes.length - 1)].names[id >>> STRIPE_BITS];
+	}
+
+	private Stripe stripe(int hash) {
+		// the low bits of the hash select the slot within the stripe
+		return stripes[(hash * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+	}
+
+	private static class Stripe {
+		private final int number;
+		private int[] table = new int[64];
+		private volatile String[] names = new String[16];
+		private int count = 0;
+
+		private Stripe(int number) {
+			this.number = number;
+		}
+
+		private synchronized int intern(int hash, String name) {
+			int slot = hash & (table.length - 1);
+			while (table[slot] != 0) {
+				if (names[table[slot] >>> STRIPE_BITS].equals(name))
+					return table[slot];
+				slot = (slot + 1) & (table.length - 1);
+			}
+			return add(slot, name);
+		}
+
+		private synchronized int intern(int hash, ByteBuffer source, int start, int length) {
+			int slot = hash & (table.length - 1);
+			search: while (table[slot] != 0) {
+				String name = names[table[slot] >>> STRIPE_BITS];
+				if (name.length() == length) {
+					for (int i = 0; i < length; i++) {
+						if (name.charAt(i) != (source.get(start + i) & 0xFF)) {
+							slot = (slot + 1) & (table.length - 1);
+							continue search;
+						}
+					}
+					return table[slot];
+				}
+				slot = (slot + 1) & (table.length - 1);
+			}
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = (char) (source.get(start + i) & 0xFF);
+			}
+			return add(slot, new String(chars));
+		}
+
+		private int add(int slot, String name) {
+			int index = ++count;
+			String[] currentNames = names;
+			if (index == currentNames.length)
+				currentNames = Arrays.copyOf(currentNames, index * 2);
+			currentNames[index] = name;
+			names = currentNames;
+			int id = index << STRIPE_BITS | number;
+			table[slot] = id;
+			if (count * 2 > table.length)
+				rehash();
+			return id;
+		}
+
+		private void rehash() {
+			int[] newTable = new int[table.length * 2];
+			for (int id : table) {
+				if (id == 0)
+					continue;
+				int slot = names[id >>> STRIPE_BITS].hashCode() & (newTable.length - 1);
+				while (newTable[slot] != 0)
+					slot = (slot + 1) & (newTable.length - 1);
+				newTable[slot] = id;
+			}
+			table = newTable;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package oberonxref;
+
+/**
+ * Decoded RISC5 instructions of one module, as parallel arrays of format,
+ * operation, registers, immediate, branch target and fixup kind. Fields are
+ * decoded the same way the disassembly prints them, so both agree.
+ *
+ * Instructions with a fixup are stored as found in the object file, before
+ * linking: for {@link #FIXUP_DATA} the <code>b</code> register holds the
+ * module number, and for {@link #FIXUP_PROCEDURE} it holds the module number
+ * and the immediate holds the procedure number.
+ */
+public class Instructions {
+
+	/** Instruction formats */
+	public static final byte FORMAT_REGISTER = 0, FORMAT_IMMEDIATE = 1, FORMAT_MEMORY = 2, FORMAT_BRANCH = 3;
+
+	/** Fixup kinds */
+	public static final byte FIXUP_NONE = 0, FIXUP_PROCEDURE = 1, FIXUP_DATA = 2, FIXUP_ADDRESS = 3, FIXUP_STRING = 4;
+
+	/** Branch conditions */
+	public static final byte CONDITION_ALWAYS = 7, CONDITION_NEVER = 15;
+
+	/** Register numbers */
+	public static final byte REGISTER_MT = 12, REGISTER_SB = 13, REGISTER_SP = 14, REGISTER_LNK = 15;
+
+	/** Target of branches that do not have one in this module */
+	public static final int NO_TARGET = -1;
+
+	private final byte[] formats, operations, as, bs, cs, fixups;
+	private final boolean[] us, vs;
+	private final int[] immediates, targets;
+
+	Instructions(int size) {
+		formats = new byte[size];
+		operations = new byte[size];
+		as = new byte[size];
+		bs = new byte[size];
+		cs = new byte[size];
+		fixups = new byte[size];
+		us = new boolean[size];
+		vs = new boolean[size];
+		immediates = new int[size];
+		targets = new int[size];
+	}
+
+	void decode(int index, int w, byte fixup) {
+		int format = w >>> 30;
+		formats[index] = (byte) format;
+		us[index] = (w >>> 29 & 1) == 1;
+		vs[index] = (w >>> 28 & 1) == 1;
+		as[index] = (byte) (w >>> 24 & 0xF);
+		bs[index] = (byte) (w >>> 20 & 0xF);
+		cs[index] = (byte) (w & 0xF);
+		fixups[index] = fixup;
+		targets[index] = NO_TARGET;
+		switch (format) {
+		case FORMAT_REGISTER:
+			operations[index] = (byte) (w >>> 16 & 0xF);
+			break;
+		case FORMAT_IMMEDIATE:
+			operations[index] = (byte) (w >>> 16 & 0xF);
+			immediates[index] = (short) w;
+			break;
+		case FORMAT_MEMORY:
+			operations[index] = (byte) (us[index] ? 1 : 0);
+			immediates[index] = (short) w;
+			break;
+		default:
+			operations[index] = as[index];
+			if (fixup == FIXUP_PROCEDURE) {
+				immediates[index] = w >>> 12 & 0xFF;
+			} else if (us[index]) {
+				immediates[index] = w << 12 >> 12;
+				targets[index] = index + 1 + immediates[index];
+			}
+		}
+	}
+
+	public int size() {
+		return formats.length;
+	}
+
+	public byte getFormat(int index) {
+		return formats[index];
+	}
+
+	/**
+	 * Return the arithmetic operation (formats 0 and 1), 0 for loads and 1
+	 * for stores (format 2), or the condition (format 3).
+	 */
+	public byte getOperation(int index) {
+		return operations[index];
+	}
+
+	public byte getA(int index) {
+		return as[index];
+	}
+
+	public byte getB(int index) {
+		return bs[index];
+	}
+
+	/**
+	 * Return the third register (format 0) or the register that holds the
+	 * target of a register branch.
+	 */
+	public byte getC(int index) {
+		return cs[index];
+	}
+
+	public boolean getU(int index) {
+		return us[index];
+	}
+
+	public boolean getV(int index) {
+		return vs[index];
+	}
+
+	/**
+	 * Return the signed immediate value, memory offset or branch offset.
+	 */
+	public int getImmediate(int index) {
+		return immediates[index];
+	}
+
+	/**
+	 * Return the index of the instruction a relative branch jumps to, or
+	 * {@link #NO_TARGET}.
+	 */
+	public int getTarget(int index) {
+		return targets[index];
+	}
+
+	public byte getFixup(int index) {
+		return fixups[index];
+	}
+
+	public boolean isBranch(int index) {
+		return formats[index] == FORMAT_BRANCH && operations[index] != CONDITION_NEVER;
+	}
+
+	/**
+	 * Return whether this is a branch and link, which returns to the next
+	 * instruction.
+	 */
+	public boolean isCall(int index) {
+		return isBranch(index) && vs[index];
+	}
+
+	public boolean isRegisterBranch(int index) {
+		return isBranch(index) && !us[index];
+	}
+
+	public boolean isConditional(int index) {
+		return operations[index] != CONDITION_ALWAYS;
+	}
+}
@@ -0,0 +1,93 @@
+package oberonxref;
+
+/**
+ * Open addressing hash map from positive int keys (identifier ids) to values.
+ */
+public class IntMap<V> {
+
+	private int[] keys = new int[8];
+	private Object[] values = new Object[8];
+	private int size = 0;
+
+	private int slotOf(int key) {
+		int mask = keys.length - 1;
+		int hash = key * 0x9E3779B1;
+		int slot = (hash ^ hash >>> 16) & mask;
+		while (keys[slot] != 0 && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	public boolean containsKey(int key) {
+		return keys[slotOf(key)] != 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		return (V) values[slotOf(key)];
+	}
+
+	public void put(int key, V value) {
+		int slot = slotOf(key);
+		if (keys[slot] == 0) {
+			if ((size + 1) * 4 > keys.length * 3) {
+				resize();
+				slot = slotOf(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int mask = keys.length - 1;
+		int slot = slotOf(key);
+		if (keys[slot] == 0)
+			return null;
+		V result = (V) values[slot];
+		keys[slot] = 0;
+		values[slot] = null;
+		size--;
+		// shift back following entries of the same probe sequence
+		for (int next = (slot + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+			int k = keys[next];
+			Object v = values[next];
+			keys[next] = 0;
+			values[next] = null;
+			int target = slotOf(k);
+			keys[target] = k;
+			values[target] = v;
+		}
+		return result;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int[] keys() {
+		int[] result = new int[size];
+		int count = 0;
+		for (int key : keys) {
+			if (key != 0)
+				result[count++] = key;
+		}
+		return result;
+	}
+
+	private void resize() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
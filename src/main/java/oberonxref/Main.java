@@ -1,170 +1,380 @@
 package oberonxref;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import oberonxref.Symbol.SymbolType;
 
 public class Main {
+
+	/** Memory of the interpreter used for profiling, in bytes */
+	private static final int PROFILE_MEMORY_SIZE = 8 << 20;
+
+	/** Instructions a profiled command or module body may execute */
+	private static final long PROFILE_STEP_LIMIT = 1000000000L, PROFILE_BODY_STEP_LIMIT = 10000000L;
+
 	public static void main(String[] args) throws Exception {
-		if (args.length != 2) {
-			System.out.println("Usage: java -jar OberonXref.jar <indir> <outdir>");
+		SymbolFileCache cache = null;
+		boolean incremental = false, compact = false, gzipOnly = false, stored = false;
+		int gzipLevel = -1;
+		String profileCommand = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int argPos = 0;
+		while (argPos < args.length && args[argPos].startsWith("--")) {
+			if (args[argPos].equals("--cache") && argPos + 1 < args.length) {
+				cache = new SymbolFileCache(new File(args[argPos + 1]));
+				argPos += 2;
+			} else if (args[argPos].equals("--threads") && argPos + 1 < args.length && args[argPos + 1].matches("[1-9][0-9]*")) {
+				threads = Integer.parseInt(args[argPos + 1]);
+				argPos += 2;
+			} else if ((args[argPos].equals("--gzip") || args[argPos].equals("--gzip-only")) && argPos + 1 < args.length && args[argPos + 1].matches("[0-9]")) {
+				gzipOnly = args[argPos].equals("--gzip-only");
+				gzipLevel = Integer.parseInt(args[argPos + 1]);
+				argPos += 2;
+			} else if (args[argPos].equals("--stored")) {
+				stored = true;
+				argPos++;
+			} else if (args[argPos].equals("--compact")) {
+				compact = true;
+				argPos++;
+			} else if (args[argPos].equals("--incremental")) {
+				incremental = true;
+				argPos++;
+			} else if (args[argPos].equals("--profile") && argPos + 1 < args.length && args[argPos + 1].matches("[A-Za-z0-9]+\\.[A-Za-z0-9]+")) {
+				profileCommand = args[argPos + 1];
+				argPos += 2;
+			} else {
+				argPos = args.length; // print usage
+			}
+		}
+		if (args.length - argPos != 2) {
+			System.out.println("Usage: java -jar OberonXref.jar [--cache <dir>] [--incremental] [--compact] [--gzip[-only] <level>] [--profile <Module.Command>] [--threads <n>] <indir> <outdir>");
+			System.out.println("       java -jar OberonXref.jar [--cache <dir>] [--compact] [--stored] [--profile <Module.Command>] [--threads <n>] <indir> <archive>.zip");
+			return;
+		}
+		if (incremental && profileCommand != null) {
+			System.out.println("--profile cannot be used with --incremental");
+			return;
+		}
+		File indir = new File(args[argPos]), outdir = new File(args[argPos + 1]);
+		boolean toArchive = SiteArchive.isArchive(outdir);
+		if (toArchive) {
+			if (incremental || gzipLevel != -1) {
+				System.out.println("--incremental and --gzip cannot be used with an archive");
+				return;
+			}
+		} else if (stored) {
+			System.out.println("--stored can only be used with an archive");
 			return;
 		}
-		List<String> modQueue = new ArrayList<>(), nextModQueue = new ArrayList<>();
-		Map<String, List<Symbol>> parsedModules = new HashMap<>();
-		Map<String, List<Symbol>> parsedModulesWithWhitespace = new HashMap<>();
-		Map<String, Disassembly> disassemblyForModules = new HashMap<>();
+		BuildManifest oldManifest = new BuildManifest(), manifest = new BuildManifest();
+		manifest.setOptions((compact ? "compact" : "default") + (gzipLevel == -1 ? "" : (gzipOnly ? ",gzip-only" : ",gzip") + gzipLevel));
+		if (incremental) {
+			if (cache == null)
+				cache = new SymbolFileCache(new File(outdir, ".symbols"));
+			oldManifest = BuildManifest.read(new File(outdir, BuildManifest.FILE_NAME));
+			// pages written with other options have to be rewritten
+			if (!manifest.getOptions().equals(oldManifest.getOptions()))
+				oldManifest = new BuildManifest();
+		}
+		Identifiers identifiers = new Identifiers();
+		Map<String, TokenBuffer> parsedModules = new HashMap<>();
+		Map<String, File> rscFiles = new HashMap<>();
+		Map<String, String> rscHashes = new HashMap<>();
+		Set<String> modulesWithRawStrings = new HashSet<>();
 		Map<String, List<String>> importedModules = new HashMap<>();
 		System.out.println("=== Scanning ===");
-		for (File f : new File(args[0]).listFiles()) {
-			if (f.getName().endsWith(".Mod.txt")) {
-				System.out.println(f);
-				String code = new String(Files.readAllBytes(f.toPath()), "ISO-8859-1").trim();
-				List<Symbol> allSyms = new ArrayList<>(), syms = new ArrayList<>();
-				boolean rawStringsFound = Scanner.scan(code, syms, allSyms);
-				StringBuilder sb = new StringBuilder();
-				for (Symbol sym : allSyms)
-					sb.append(sym.getText());
-				if (!sb.toString().equals(code)) {
-					throw new RuntimeException("Scanner altered the source code!");
+		int tokenCount = 0, meaningfulTokenCount = 0;
+		List<Future<ScannedFile>> scannedFiles = new ArrayList<>();
+		ExecutorService scanExecutor = Executors.newFixedThreadPool(threads);
+		try {
+			for (File f : indir.listFiles()) {
+				if (f.getName().endsWith(".Mod.txt")) {
+					final boolean hashRsc = incremental;
+					scannedFiles.add(scanExecutor.submit(() -> scanFile(f, identifiers, hashRsc)));
 				}
-				List<String> imports = new ArrayList<>();
-				String modname = Parser.findImportedModules(syms, imports);
-				if (!f.getName().equals(modname + ".Mod.txt"))
-					throw new RuntimeException("Invalid file name " + f.getName() + " for module " + modname);
-				importedModules.put(modname, imports);
-				modQueue.add(modname);
-				parsedModules.put(modname, syms);
-				parsedModulesWithWhitespace.put(modname, allSyms);
-				File rscFile = new File(f.getParentFile(), modname + ".rsc");
-				if (rscFile.exists()) {
-					disassemblyForModules.put(modname, Disassembly.disassembly(rscFile, !rawStringsFound));
+			}
+			for (Future<ScannedFile> future : scannedFiles) {
+				ScannedFile sf = getResult(future);
+				System.out.println(sf.file);
+				importedModules.put(sf.module, sf.imports);
+				tokenCount += sf.tokens.size();
+				meaningfulTokenCount += sf.tokens.getMeaningfulSize();
+				parsedModules.put(sf.module, sf.tokens);
+				if (sf.rawStringsFound)
+					modulesWithRawStrings.add(sf.module);
+				if (sf.rscFile != null) {
+					rscFiles.put(sf.module, sf.rscFile);
 				} else {
 					System.out.println("(no .rsc file");
 				}
+				rscHashes.put(sf.module, sf.rscHash);
 			}
+		} finally {
+			scanExecutor.shutdownNow();
 		}
-		System.out.println("=== Parsing ===");
-		Map<String, Scope> publicScopes = new HashMap<>();
-		for (String builtin : Arrays.asList("BUILTINS", "SYSTEM")) {
-			try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					InputStream in = Scanner.class.getResourceAsStream("/" + builtin + ".Mod.txt")) {
-				HTMLBuilder.copyStream(in, baos);
-				String code = new String(baos.toByteArray(), "ISO-8859-1").trim();
-				List<Symbol> allSyms = new ArrayList<>(), syms = new ArrayList<>();
-				Scanner.scan(code, syms, allSyms);
-				Parser p = new Parser(syms, publicScopes);
-				String modname = p.parseModule();
-				if (!builtin.equals(modname))
-					throw new RuntimeException("Invalid builtin name " + builtin + " for module " + modname);
-				parsedModulesWithWhitespace.put(builtin, allSyms);
+		System.out.println(tokenCount + " tokens (" + meaningfulTokenCount + " meaningful)");
+		Map<String, long[]> executionCounts = profileCommand == null ? null : profile(profileCommand, rscFiles);
+		System.out.println("=== Parsing and rendering ===");
+		long renderStart = System.nanoTime();
+		// the archive is closed on errors as well, so that its file is not kept open
+		HTMLBuilder hb;
+		try (SiteArchive archive = toArchive ? new SiteArchive(outdir, stored) : null) {
+			hb = archive != null ? new HTMLBuilder(archive, compact) : new HTMLBuilder(outdir, compact);
+			if (gzipLevel != -1)
+				hb.setCompression(gzipLevel, !gzipOnly);
+			if (executionCounts != null)
+				hb.setProfile(executionCounts);
+			Map<String, Scope> publicScopes = new ConcurrentHashMap<>();
+			for (String builtin : Arrays.asList("BUILTINS", "SYSTEM")) {
+				TokenBuffer tokens = ParallelParser.parseBuiltin(builtin, publicScopes, identifiers);
+				if (cache != null)
+					cache.register(builtin, tokens.getSource(), publicScopes.get(builtin));
+				parsedModules.put(builtin, tokens);
+				rscHashes.put(builtin, "-");
 			}
-		}
-		Map<String, List<String>> filesToCheck = new HashMap<>();
-		while (!modQueue.isEmpty()) {
-			for (String mod : modQueue) {
-				String lastUnresolvedImport = null;
-				for (String dep : importedModules.get(mod))
-					if (!publicScopes.containsKey(dep))
-						lastUnresolvedImport = dep;
-				if (lastUnresolvedImport == null) {
-					List<Symbol> symbols = parsedModules.get(mod);
-					Parser p = new Parser(symbols, publicScopes);
-					try {
-						System.out.println(mod);
-						String modname = p.parseModule();
-						if (!mod.equals(modname))
-							throw new RuntimeException("Module name " + modname + " does not match " + mod);
-						List<String> nextMods = filesToCheck.remove(mod);
-						if (nextMods != null)
-							nextModQueue.addAll(nextMods);
-					} catch (RuntimeException ex) {
-						// find approximate error position
-						int nextSym = p.getNextSym();
-						StringBuilder symTexts = new StringBuilder();
-						for (int i = Math.max(0, nextSym - 25); i < Math.min(symbols.size(), nextSym + 25); i++) {
-							if (i == nextSym)
-								symTexts.append("\nSymbols after:\n");
-							symTexts.append(symbols.get(i).getText() + " ");
-						}
-						throw new RuntimeException("While parsing " + mod + "\nSymbols before:\n" + symTexts.toString(), ex);
-					}
-				} else {
-					filesToCheck.computeIfAbsent(lastUnresolvedImport, m -> new ArrayList<>()).add(mod);
+			ModuleGraph graph = new ModuleGraph(importedModules, publicScopes.keySet());
+			System.out.println(graph.size() + " modules, longest import chain " + graph.getCriticalPathLength());
+			ParallelParser parser = new ParallelParser(parsedModules, graph, publicScopes);
+			final SymbolFileCache keyCache = cache;
+			parser.setCache(keyCache);
+			if (incremental) {
+				final BuildManifest previous = oldManifest;
+				parser.setParseFilter(m -> {
+					BuildManifest.ModuleEntry old = previous.getModule(m);
+					return old == null || !old.getKey().equals(keyCache.getKey(m)) || !old.getRscHash().equals(rscHashes.get(m)) || hb.isPageMissing(m + ".html");
+				});
+			}
+			// main pages only depend on their own module, so render them right after parsing
+			Map<String, BuildManifest.ModuleEntry> renderedModules = new ConcurrentHashMap<>();
+			Consumer<String> renderer = module -> {
+				TokenBuffer tokens = parsedModules.get(module);
+				BuildManifest.ModuleEntry entry = new BuildManifest.ModuleEntry(keyCache == null ? "-" : keyCache.getKey(module), rscHashes.get(module));
+				collectLinks(module, tokens, entry);
+				File rscFile = rscFiles.get(module);
+				try {
+					Disassembly disassembly = rscFile == null ? null : Disassembly.disassembly(rscFile, !modulesWithRawStrings.contains(module));
+					if (disassembly != null)
+						CallGraph.collectCalls(module, tokens, disassembly, entry);
+					hb.writeMainFile(module, tokens, disassembly);
+				} catch (IOException ex) {
+					throw new RuntimeException("Cannot write main page of " + module, ex);
 				}
+				renderedModules.put(module, entry);
+			};
+			for (String builtin : Arrays.asList("BUILTINS", "SYSTEM")) {
+				if (parser.getParseFilter().test(builtin))
+					renderer.accept(builtin);
 			}
-			modQueue = nextModQueue;
-			nextModQueue = new ArrayList<>();
-		}
-		if (!filesToCheck.isEmpty())
-			throw new RuntimeException("Unsatisfiable module dependencies: " + filesToCheck);
-		System.out.println("=== Building symbol usage lists ===");
-		Set<String> globalLinkAnchors = new HashSet<>(), usageLinks = new HashSet<>();
-		Map<String, Set<String>> publicLinkReferences = new HashMap<>();
-		for (Map.Entry<String, List<Symbol>> e : parsedModulesWithWhitespace.entrySet()) {
-			String htmlFile = e.getKey() + ".html";
-			List<String> localLinks = new ArrayList<>();
-			for (Symbol s : e.getValue()) {
-				if (s.getType().equals(SymbolType.IDENTIFIER)) {
-					if (s.getLink() == null)
-						throw new RuntimeException(e.getKey() + ": No link on " + s);
-				} else if (!s.getType().equals(SymbolType.OP_TIMES) && s.getLink() != null) {
-					throw new RuntimeException(e.getKey() + ": Link on " + s);
+			parser.setRenderer(renderer);
+			parser.parseAll(threads, true);
+			System.out.println("=== Building symbol usage lists ===");
+			for (String module : parsedModules.keySet()) {
+				BuildManifest.ModuleEntry entry = renderedModules.get(module);
+				manifest.putModule(module, entry != null ? entry : oldManifest.getModule(module));
+			}
+			Set<String> globalLinkAnchors = new HashSet<>(), usageLinks = new HashSet<>();
+			Map<String, Set<String>> publicLinkReferences = new HashMap<>();
+			for (String module : manifest.getModules()) {
+				BuildManifest.ModuleEntry entry = manifest.getModule(module);
+				globalLinkAnchors.addAll(entry.getAnchors());
+				for (String usageLink : entry.getUsageLinks()) {
+					usageLinks.add(usageLink);
+					publicLinkReferences.putIfAbsent(usageLink, new HashSet<>());
 				}
-				if (s.getLink() != null) {
-					if (s.getLink().startsWith("=")) {
-						globalLinkAnchors.add(htmlFile + "#" + s.getLink().substring(1));
-					} else if (s.getLink().startsWith("#")) {
-						localLinks.add(s.getLink());
-					} else if (s.getLink().startsWith(htmlFile.replace(".html", "-usage.html") + "#")) {
-						usageLinks.add(s.getLink().replace("-usage.html#", ".html#"));
-						publicLinkReferences.putIfAbsent(s.getLink().replace("-usage.html#", ".html#"), new HashSet<>());
-					} else {
-						publicLinkReferences.computeIfAbsent(s.getLink(), v -> new HashSet<>()).add(htmlFile);
+				for (String reference : entry.getReferences()) {
+					publicLinkReferences.computeIfAbsent(reference, v -> new HashSet<>()).add(module + ".html");
+				}
+			}
+			for (String globalLink : publicLinkReferences.keySet()) {
+				if (!usageLinks.contains(globalLink))
+					throw new RuntimeException(globalLink);
+				if (!globalLinkAnchors.contains(globalLink))
+					System.out.println("Dangling link: " + globalLink);
+			}
+			for (String usageLink : usageLinks) {
+				if (!publicLinkReferences.containsKey(usageLink))
+					throw new RuntimeException();
+			}
+			CallGraph callGraph = new CallGraph(manifest);
+			System.out.println(callGraph.getProcedureCount() + " procedures in call graph");
+			System.out.println("=== Exporting usage pages ===");
+			hb.copyResource("style.css");
+			hb.copyResource("script.js");
+			Map<String, Map<String, Set<String>>> usageRefsForModules = new HashMap<>();
+			for (String link : publicLinkReferences.keySet()) {
+				String module = link.substring(0, link.indexOf(".html#"));
+				usageRefsForModules.computeIfAbsent(module, m -> new HashMap<>()).put(link.substring(module.length() + 6), publicLinkReferences.get(link));
+			}
+			// usage pages are written in parallel, but waited for in a fixed order
+			List<String> modules = new ArrayList<>(parsedModules.keySet());
+			Collections.sort(modules);
+			List<Future<?>> usagePages = new ArrayList<>();
+			ExecutorService usageExecutor = Executors.newFixedThreadPool(threads);
+			try {
+				for (String module : modules) {
+					Map<String, Set<String>> usageRefs = usageRefsForModules.getOrDefault(module, new HashMap<>());
+					BuildManifest.ModuleEntry entry = manifest.getModule(module);
+					// entries of modules that were not rendered again are shared with the old manifest
+					BuildManifest.ModuleEntry oldEntry = oldManifest.getModule(module);
+					String oldUsageHash = oldEntry == null ? null : oldEntry.getUsageHash();
+					entry.setUsageHash(incremental ? BuildManifest.hashUsages(module, usageRefs, callGraph) : "-");
+					if (!incremental || !entry.getUsageHash().equals(oldUsageHash) || hb.isPageMissing(module + "-usage.html")) {
+						usagePages.add(usageExecutor.submit(() -> {
+							hb.writeUsageFile(module, usageRefs, callGraph);
+							return null;
+						}));
 					}
 				}
+				for (Future<?> future : usagePages) {
+					getResult(future);
+				}
+			} finally {
+				usageExecutor.shutdownNow();
+			}
+			manifest.setIndexHash(incremental ? BuildManifest.hashIndex(parsedModules.keySet(), importedModules) : "-");
+			if (!incremental || !manifest.getIndexHash().equals(oldManifest.getIndexHash()) || hb.isPageMissing("index.html")) {
+				hb.writeIndexFile(parsedModules.keySet(), importedModules);
 			}
-			for (String localLink : localLinks) {
-				if (!globalLinkAnchors.contains(htmlFile + localLink)) {
-					throw new RuntimeException("Dangling link in " + htmlFile + ": " + localLink);
+			if (incremental) {
+				for (String module : oldManifest.getModules()) {
+					if (!parsedModules.containsKey(module)) {
+						hb.deletePage(module + ".html");
+						hb.deletePage(module + "-usage.html");
+					}
 				}
+				manifest.write(new File(outdir, BuildManifest.FILE_NAME));
 			}
 		}
-		for (String globalLink : publicLinkReferences.keySet()) {
-			if (!usageLinks.contains(globalLink))
-				throw new RuntimeException(globalLink);
-			if (!globalLinkAnchors.contains(globalLink))
-				System.out.println("Dangling link: " + globalLink);
+		double seconds = (System.nanoTime() - renderStart) / 1e9, megabytes = hb.getBytesWritten() / 1048576.0;
+		System.out.println(String.format("%d pages written (%.1f MB) in %.2f s with %d threads: %.0f pages/s, %.1f MB/s", hb.getPagesWritten(), megabytes, seconds, threads,
+				hb.getPagesWritten() / seconds, megabytes / seconds));
+	}
+
+	/**
+	 * Load a module with its imports into an interpreter, run a command and
+	 * return the execution counts of the instructions of all loaded modules.
+	 */
+	private static Map<String, long[]> profile(String command, Map<String, File> rscFiles) throws IOException {
+		System.out.println("=== Profiling " + command + " ===");
+		int dot = command.indexOf('.');
+		Risc5Interpreter interpreter = new Risc5Interpreter(PROFILE_MEMORY_SIZE);
+		interpreter.setBodyStepLimit(PROFILE_BODY_STEP_LIMIT);
+		interpreter.load(command.substring(0, dot), rscFiles);
+		for (String body : interpreter.getAbandonedBodies()) {
+			System.out.println("Body of " + body);
 		}
-		for (String usageLink : usageLinks) {
-			if (!publicLinkReferences.containsKey(usageLink))
-				throw new RuntimeException();
+		long start = System.nanoTime();
+		String reason = interpreter.call(command.substring(0, dot), command.substring(dot + 1), PROFILE_STEP_LIMIT);
+		if (reason != null)
+			System.out.println(command + ": " + reason);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d instructions executed in %.2f s (%.1f million/s)", interpreter.getSteps(), seconds, interpreter.getSteps() / seconds / 1e6));
+		return interpreter.getExecutionCounts();
+	}
+
+	private static <T> T getResult(Future<T> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			throw new RuntimeException(ex.getCause());
 		}
-		System.out.println("=== Exporting HTML files ===");
-		HTMLBuilder hb = new HTMLBuilder(new File(args[1]));
-		hb.copyResource("style.css");
-		hb.copyResource("script.js");
-		for (String module : parsedModulesWithWhitespace.keySet()) {
-			System.out.println(module);
-			hb.writeMainFile(module, parsedModulesWithWhitespace.get(module), disassemblyForModules.get(module));
-			Map<String, Set<String>> usageRefs = new HashMap<>();
-			for (String link : publicLinkReferences.keySet()) {
-				if (link.startsWith(module + ".html#")) {
-					usageRefs.put(link.substring(module.length() + 6), publicLinkReferences.get(link));
+	}
+
+	private static class ScannedFile {
+		private File file, rscFile;
+		private String module, rscHash = "-";
+		private TokenBuffer tokens;
+		private List<String> imports = new ArrayList<>();
+		private boolean rawStringsFound;
+	}
+
+	private static ScannedFile scanFile(File f, Identifiers identifiers, boolean hashRsc) throws IOException {
+		ScannedFile result = new ScannedFile();
+		result.file = f;
+		ByteBuffer code = Scanner.mapSource(f);
+		result.tokens = new TokenBuffer(code, identifiers);
+		result.rawStringsFound = Scanner.scan(result.tokens);
+		int codePos = 0;
+		for (int i = 0; i < result.tokens.size(); i++) {
+			String text = result.tokens.getText(i);
+			if (result.tokens.getStart(i) != codePos || result.tokens.getLength(i) != text.length() || !regionMatches(code, codePos, text))
+				throw new RuntimeException("Scanner altered the source code!");
+			codePos += text.length();
+		}
+		if (codePos != code.limit()) {
+			throw new RuntimeException("Scanner altered the source code!");
+		}
+		result.module = Parser.findImportedModules(result.tokens, result.imports);
+		if (!f.getName().equals(result.module + ".Mod.txt"))
+			throw new RuntimeException("Invalid file name " + f.getName() + " for module " + result.module);
+		File rscFile = new File(f.getParentFile(), result.module + ".rsc");
+		if (rscFile.exists()) {
+			result.rscFile = rscFile;
+			if (hashRsc)
+				result.rscHash = BuildManifest.hashFile(rscFile);
+		}
+		return result;
+	}
+
+	private static boolean regionMatches(ByteBuffer source, int start, String text) {
+		if (start + text.length() > source.limit())
+			return false;
+		for (int i = 0; i < text.length(); i++) {
+			if ((source.get(start + i) & 0xFF) != text.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check the links of a parsed module and collect them into its manifest
+	 * entry.
+	 */
+	private static void collectLinks(String module, TokenBuffer tokens, BuildManifest.ModuleEntry entry) {
+		String htmlFile = module + ".html";
+		List<String> localLinks = new ArrayList<>();
+		for (int s = 0; s < tokens.size(); s++) {
+			String link = tokens.getLink(s);
+			if (tokens.getType(s).equals(SymbolType.IDENTIFIER)) {
+				if (link == null)
+					throw new RuntimeException(module + ": No link on " + tokens.describe(s));
+			} else if (!tokens.getType(s).equals(SymbolType.OP_TIMES) && link != null) {
+				throw new RuntimeException(module + ": Link on " + tokens.describe(s));
+			}
+			if (link != null) {
+				if (link.startsWith("=")) {
+					entry.getAnchors().add(htmlFile + "#" + link.substring(1));
+				} else if (link.startsWith("#")) {
+					localLinks.add(link);
+				} else if (link.startsWith(module + "-usage.html#")) {
+					entry.getUsageLinks().add(link.replace("-usage.html#", ".html#"));
+				} else {
+					entry.getReferences().add(link);
 				}
 			}
-			hb.writeUsageFile(module, usageRefs);
 		}
-		hb.writeIndexFile(parsedModulesWithWhitespace.keySet(), importedModules);
+		for (String localLink : localLinks) {
+			if (!entry.getAnchors().contains(htmlFile + localLink)) {
+				throw new RuntimeException("Dangling link in " + htmlFile + ": " + localLink);
+			}
+		}
 	}
 }
@@ -0,0 +1,196 @@
+package oberonxref;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Import graph of a set of modules. The parse order is computed once with
+ * Kahn's algorithm in O(V+E); missing imports and import cycles are reported
+ * when the graph is built.
+ */
+public class ModuleGraph {
+
+	private final String[] names;
+	private final Map<String, List<String>> importedModules;
+	private final Map<String, Integer> indices = new HashMap<>();
+	private final int[][] imports, dependents;
+	private final int[] order, height;
+	private final int criticalPathLength;
+
+	/**
+	 * @param importedModules
+	 *            Imports of every module
+	 * @param predefinedModules
+	 *            Modules that may be imported but are not part of the graph
+	 *            (e.g. SYSTEM)
+	 */
+	public ModuleGraph(Map<String, List<String>> importedModules, Collection<String> predefinedModules) {
+		this.importedModules = importedModules;
+		names = importedModules.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		for (int i = 0; i < names.length; i++) {
+			indices.put(names[i], i);
+		}
+		Map<String, List<String>> unknownImports = new TreeMap<>();
+		imports = new int[names.length][];
+		int[] dependentCount = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			List<String> deps = importedModules.get(names[i]);
+			int[] edges = new int[deps.size()];
+			int count = 0;
+			for (String dep : deps) {
+				Integer index = indices.get(dep);
+				if (index != null) {
+					edges[count++] = index;
+					dependentCount[index]++;
+				} else if (!predefinedModules.contains(dep)) {
+					unknownImports.computeIfAbsent(dep, m -> new ArrayList<>()).add(names[i]);
+				}
+			}
+			imports[i] = Arrays.copyOf(edges, count);
+		}
+		if (!unknownImports.isEmpty())
+			throw new RuntimeException("Unsatisfiable module dependencies: " + unknownImports);
+		dependents = new int[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			dependents[i] = new int[dependentCount[i]];
+			dependentCount[i] = 0;
+		}
+		for (int i = 0; i < names.length; i++) {
+			for (int dep : imports[i]) {
+				dependents[dep][dependentCount[dep]++] = i;
+			}
+		}
+
+		// Kahn's algorithm
+		int[] inDegree = new int[names.length];
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		for (int i = 0; i < names.length; i++) {
+			inDegree[i] = imports[i].length;
+			if (inDegree[i] == 0)
+				queue.add(i);
+		}
+		order = new int[names.length];
+		int ordered = 0;
+		while (!queue.isEmpty()) {
+			int mod = queue.poll();
+			order[ordered++] = mod;
+			for (int next : dependents[mod]) {
+				if (--inDegree[next] == 0)
+					queue.add(next);
+			}
+		}
+		if (ordered < names.length)
+			throw new RuntimeException("Import cycle: " + String.join(" -> ", findCycle(inDegree)));
+
+		// longest import chain below (depth) and above (height) each module
+		int[] depth = new int[names.length];
+		height = new int[names.length];
+		int longest = 0;
+		for (int mod : order) {
+			depth[mod] = 1;
+			for (int dep : imports[mod])
+				depth[mod] = Math.max(depth[mod], depth[dep] + 1);
+			longest = Math.max(longest, depth[mod]);
+		}
+		for (int i = order.length - 1; i >= 0; i--) {
+			int mod = order[i];
+			height[mod] = 1;
+			for (int next : dependents[mod])
+				height[mod] = Math.max(height[mod], height[next] + 1);
+		}
+		criticalPathLength = longest;
+	}
+
+	/**
+	 * Follow unresolved imports from a module left over by Kahn's algorithm
+	 * until a module repeats. Each module in the result imports the next one.
+	 */
+	private List<String> findCycle(int[] inDegree) {
+		int start = 0;
+		while (inDegree[start] == 0)
+			start++;
+		int[] visitedAt = new int[names.length];
+		List<String> path = new ArrayList<>();
+		int mod = start;
+		while (visitedAt[mod] == 0) {
+			path.add(names[mod]);
+			visitedAt[mod] = path.size();
+			for (int dep : imports[mod]) {
+				if (inDegree[dep] != 0) {
+					mod = dep;
+					break;
+				}
+			}
+		}
+		path = new ArrayList<>(path.subList(visitedAt[mod] - 1, path.size()));
+		path.add(names[mod]);
+		return path;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Return the modules in an order where every module comes after all its
+	 * imports.
+	 */
+	public List<String> getOrder() {
+		List<String> result = new ArrayList<>(order.length);
+		for (int mod : order) {
+			result.add(names[mod]);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the number of modules in the longest import chain, i.e. the
+	 * number of parse steps even with unlimited parallelism.
+	 */
+	public int getCriticalPathLength() {
+		return criticalPathLength;
+	}
+
+	/**
+	 * Return the number of modules in the longest chain of modules importing
+	 * this module (including itself). Modules with higher values should be
+	 * processed first.
+	 */
+	public int getHeight(String module) {
+		return height[indices.get(module)];
+	}
+
+	public boolean contains(String module) {
+		return indices.containsKey(module);
+	}
+
+	/**
+	 * Return all imports of this module, including predefined modules.
+	 */
+	public List<String> getImports(String module) {
+		return importedModules.get(module);
+	}
+
+	/**
+	 * Return the number of modules of this graph imported by this module.
+	 */
+	public int getImportCount(String module) {
+		return imports[indices.get(module)].length;
+	}
+
+	public List<String> getDependents(String module) {
+		int[] deps = dependents[indices.get(module)];
+		List<String> result = new ArrayList<>(deps.length);
+		for (int dep : deps) {
+			result.add(names[dep]);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,244 @@
+package oberonxref;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Parse modules on a thread pool. A module is submitted as soon as all its
+ * imports have been parsed and their public scopes published; published
+ * scopes are never modified afterwards, so parsers can share them freely.
+ * Modules with longer chains of modules importing them are parsed first.
+ */
+public class ParallelParser {
+
+	private final Map<String, TokenBuffer> modules;
+	private final ModuleGraph graph;
+	private final Map<String, Scope> publicScopes;
+	private SymbolFileCache cache = null;
+	private Predicate<String> parseFilter = m -> true;
+	private Consumer<String> renderer = null;
+	private final Set<String> parsedModules = new HashSet<>();
+
+	/**
+	 * @param publicScopes
+	 *            Concurrent map of already published scopes (at least
+	 *            BUILTINS), which will be filled with the parsed modules.
+	 */
+	public ParallelParser(Map<String, TokenBuffer> modules, ModuleGraph graph, Map<String, Scope> publicScopes) {
+		this.modules = modules;
+		this.graph = graph;
+		this.publicScopes = publicScopes;
+	}
+
+	/**
+	 * Publish the interfaces of modules with up to date symbol files without
+	 * waiting for them to be parsed. Freshly parsed interfaces are stored in
+	 * the cache.
+	 */
+	public void setCache(SymbolFileCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Skip parsing of modules whose interface was loaded from the cache and
+	 * which are rejected by the filter. The filter is called after the
+	 * module's key has been computed.
+	 */
+	public void setParseFilter(Predicate<String> parseFilter) {
+		this.parseFilter = parseFilter;
+	}
+
+	public Predicate<String> getParseFilter() {
+		return parseFilter;
+	}
+
+	/**
+	 * Call the renderer for every parsed module on the thread pool as soon
+	 * as it is parsed, while other modules are still parsing. Parsing always
+	 * takes precedence over rendering.
+	 */
+	public void setRenderer(Consumer<String> renderer) {
+		this.renderer = renderer;
+	}
+
+	/**
+	 * Return all modules that have been parsed by {@link #parseAll(int, boolean)}.
+	 */
+	public Set<String> getParsedModules() {
+		return parsedModules;
+	}
+
+	public static void publish(Map<String, Scope> publicScopes, String module, Scope publicScope) {
+		if (publicScopes.putIfAbsent(module, publicScope) != null)
+			throw new IllegalStateException("Module " + module + " published twice");
+	}
+
+	/**
+	 * Scan, parse and publish one of the builtin modules BUILTINS or SYSTEM.
+	 */
+	public static TokenBuffer parseBuiltin(String builtin, Map<String, Scope> publicScopes, Identifiers identifiers) throws IOException {
+		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				InputStream in = Scanner.class.getResourceAsStream("/" + builtin + ".Mod.txt")) {
+			HTMLBuilder.copyStream(in, baos);
+			TokenBuffer tokens = new TokenBuffer(Scanner.trim(ByteBuffer.wrap(baos.toByteArray())), identifiers);
+			Scanner.scan(tokens);
+			Parser p = new Parser(tokens, publicScopes);
+			String modname = p.parseModule();
+			if (!builtin.equals(modname))
+				throw new RuntimeException("Invalid builtin name " + builtin + " for module " + modname);
+			publish(publicScopes, builtin, p.getPublicScope());
+			return tokens;
+		}
+	}
+
+	public void parseAll(int threads, boolean verbose) throws InterruptedException {
+		Map<String, Integer> pendingImports = new HashMap<>();
+		List<String> ready = new ArrayList<>();
+		for (String mod : graph.getOrder()) {
+			pendingImports.put(mod, graph.getImportCount(mod));
+			if (graph.getImportCount(mod) == 0)
+				ready.add(mod);
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new PriorityBlockingQueue<>());
+		try {
+			BlockingQueue<Task> finished = new LinkedBlockingQueue<>();
+			Set<String> publishAfterParse = new HashSet<>();
+			int running = 0, loaded = 0;
+			ArrayDeque<String> queue = new ArrayDeque<>(ready);
+			while (true) {
+				// publish the interfaces of ready modules or submit them for parsing
+				while (!queue.isEmpty()) {
+					String mod = queue.poll();
+					Scope scope = cache == null ? null : loadInterface(mod);
+					if (scope != null) {
+						publish(publicScopes, mod, scope);
+						loaded++;
+						release(mod, pendingImports, queue);
+						if (!parseFilter.test(mod))
+							continue;
+					} else {
+						publishAfterParse.add(mod);
+					}
+					parsedModules.add(mod);
+					executor.execute(new Task(mod, graph.getHeight(mod), false, finished, () -> parse(mod, scope == null)));
+					running++;
+				}
+				if (running == 0)
+					break;
+				Task task = finished.take();
+				running--;
+				if (task.error != null) {
+					if (task.error instanceof RuntimeException)
+						throw (RuntimeException) task.error;
+					throw new RuntimeException(task.error);
+				}
+				if (task.render)
+					continue;
+				if (verbose)
+					System.out.println(task.module);
+				if (publishAfterParse.contains(task.module))
+					release(task.module, pendingImports, queue);
+				if (renderer != null) {
+					// rendering has lower priority than parsing any module
+					executor.execute(new Task(task.module, 0, true, finished, () -> renderer.accept(task.module)));
+					running++;
+				}
+			}
+			if (verbose && cache != null)
+				System.out.println(loaded + " module interfaces loaded from symbol files");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Scope loadInterface(String mod) {
+		cache.computeKey(mod, modules.get(mod).getSource(), graph.getImports(mod));
+		return cache.load(mod, modules.get(mod).getIdentifierTable());
+	}
+
+	private void release(String mod, Map<String, Integer> pendingImports, ArrayDeque<String> queue) {
+		for (String next : graph.getDependents(mod)) {
+			int pending = pendingImports.get(next) - 1;
+			pendingImports.put(next, pending);
+			if (pending == 0)
+				queue.add(next);
+		}
+	}
+
+	private void parse(String mod, boolean publish) {
+		TokenBuffer symbols = modules.get(mod);
+		Parser p = new Parser(symbols, publicScopes);
+		try {
+			String modname = p.parseModule();
+			if (!mod.equals(modname))
+				throw new RuntimeException("Module name " + modname + " does not match " + mod);
+		} catch (RuntimeException ex) {
+			// find approximate error position
+			int nextSym = p.getNextSym();
+			StringBuilder symTexts = new StringBuilder();
+			for (int i = Math.max(0, nextSym - 25); i < Math.min(symbols.getMeaningfulSize(), nextSym + 25); i++) {
+				if (i == nextSym)
+					symTexts.append("\nSymbols after:\n");
+				symTexts.append(symbols.getText(symbols.getMeaningfulToken(i)) + " ");
+			}
+			throw new RuntimeException("While parsing " + mod + "\nSymbols before:\n" + symTexts.toString(), ex);
+		}
+		if (publish) {
+			if (cache != null)
+				cache.store(mod, p.getPublicScope());
+			publish(publicScopes, mod, p.getPublicScope());
+		}
+	}
+
+	/**
+	 * Parse or render task; tasks with higher priority run first.
+	 */
+	private static class Task implements Runnable, Comparable<Task> {
+		private final String module;
+		private final int priority;
+		private final boolean render;
+		private final BlockingQueue<Task> finished;
+		private final Runnable work;
+		private Throwable error = null;
+
+		private Task(String module, int priority, boolean render, BlockingQueue<Task> finished, Runnable work) {
+			this.module = module;
+			this.priority = priority;
+			this.render = render;
+			this.finished = finished;
+			this.work = work;
+		}
+
+		@Override
+		public void run() {
+			try {
+				work.run();
+			} catch (Throwable t) {
+				error = t;
+			} finally {
+				finished.add(this);
+			}
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			return Integer.compare(o.priority, priority);
+		}
+	}
+}
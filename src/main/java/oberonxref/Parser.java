@@ -9,57 +9,76 @@ import oberonxref.Symbol.SymbolType;
 
 public class Parser {
 
-	public static String findImportedModules(List<Symbol> program, List<String> dependenciesToFill) {
+	public static String findImportedModules(TokenBuffer program, List<String> dependenciesToFill) {
 		int nextSym = 0;
-		while (program.get(nextSym).hasTypeOneOf(SymbolType.KEYWORD_MODULE, SymbolType.OP_TIMES))
+		while (program.hasTypeOneOf(program.getMeaningfulToken(nextSym), SymbolType.KEYWORD_MODULE, SymbolType.OP_TIMES))
 			nextSym++;
-		if (program.get(nextSym).getType() != SymbolType.IDENTIFIER)
+		if (typeAt(program, nextSym) != SymbolType.IDENTIFIER)
 			return "";
-		String moduleName = program.get(nextSym).getText();
+		String moduleName = textAt(program, nextSym);
 		nextSym++;
-		if (program.get(nextSym).getType() == SymbolType.OP_SEMICOLON)
+		if (typeAt(program, nextSym) == SymbolType.OP_SEMICOLON)
 			nextSym++;
-		if (program.get(nextSym).getType() == SymbolType.KEYWORD_IMPORT) {
+		if (typeAt(program, nextSym) == SymbolType.KEYWORD_IMPORT) {
 			nextSym++;
-			while (program.get(nextSym).getType() == SymbolType.IDENTIFIER) {
-				String importedModule = program.get(nextSym).getText();
+			while (typeAt(program, nextSym) == SymbolType.IDENTIFIER) {
+				String importedModule = textAt(program, nextSym);
 				nextSym++;
-				if (program.get(nextSym).getType() == SymbolType.OP_BECOMES) {
+				if (typeAt(program, nextSym) == SymbolType.OP_BECOMES) {
 					nextSym++;
-					if (program.get(nextSym).getType() != SymbolType.IDENTIFIER)
+					if (typeAt(program, nextSym) != SymbolType.IDENTIFIER)
 						break;
-					importedModule = program.get(nextSym).getText();
+					importedModule = textAt(program, nextSym);
 					nextSym++;
 				}
 				dependenciesToFill.add(importedModule);
-				if (program.get(nextSym).getType() == SymbolType.OP_COMMA)
+				if (typeAt(program, nextSym) == SymbolType.OP_COMMA)
 					nextSym++;
 			}
 		}
 		return moduleName;
 	}
 
-	private final List<Symbol> program;
+	private static SymbolType typeAt(TokenBuffer program, int meaningfulIndex) {
+		return program.getType(program.getMeaningfulToken(meaningfulIndex));
+	}
+
+	private static String textAt(TokenBuffer program, int meaningfulIndex) {
+		return program.getText(program.getMeaningfulToken(meaningfulIndex));
+	}
+
+	private final TokenBuffer program;
+	private final Identifiers identifiers;
 	private final Map<String, Scope> publicScopes;
 	private Scope currentScope;
+	private Scope publicScope;
 	private int nextSym = 0;
 
-	public Parser(List<Symbol> program, Map<String, Scope> publicScopes) {
+	public Parser(TokenBuffer program, Map<String, Scope> publicScopes) {
 		this.program = program;
+		this.identifiers = program.getIdentifierTable();
 		this.publicScopes = publicScopes;
-		currentScope = new Scope(publicScopes.get("BUILTINS"), "#", null);
+		currentScope = new Scope(identifiers, publicScopes.get("BUILTINS"), "#", null);
 	}
 
 	public int getNextSym() {
 		return nextSym;
 	}
 
-	private Symbol symbol() {
-		return program.get(nextSym);
+	/**
+	 * Return the public scope of the parsed module, to be published by the
+	 * caller once {@link #parseModule()} has completed.
+	 */
+	public Scope getPublicScope() {
+		return publicScope;
+	}
+
+	private int symbol() {
+		return program.getMeaningfulToken(nextSym);
 	}
 
 	private SymbolType sym() {
-		return symbol().getType();
+		return program.getType(symbol());
 	}
 
 	private void expect(SymbolType symType, String error, boolean skip) {
@@ -69,11 +88,11 @@ public class Parser {
 			nextSym++;
 	}
 
-	protected void setDefinitionLink(Scope scope, Symbol symbol) {
-		symbol.setLink("=" + scope.getIdentifierLink(symbol.getText()).replaceFirst("^#", ""));
+	protected void setDefinitionLink(Scope scope, int symbol) {
+		program.setLink(symbol, "=" + scope.getIdentifierLink(program.getIdentifier(symbol)).replaceFirst("^#", ""));
 	}
 
-	private boolean checkExport(String identifier) {
+	private boolean checkExport(int identifier) {
 		if (sym() == SymbolType.OP_TIMES) {
 			Scope pubScope = currentScope.getPublicScope();
 			if (pubScope == null)
@@ -89,19 +108,19 @@ public class Parser {
 
 	private TypeAndScope parseQualifiedIdentifier() {
 		expect(SymbolType.IDENTIFIER, "identifier expected", false);
-		String ident = symbol().getText();
-		symbol().setLink(currentScope.getIdentifierLink(ident));
+		Scope.Entry entry = currentScope.getEntry(program.getIdentifier(symbol()));
+		program.setLink(symbol(), entry.getLink());
 		TypeAndScope ts = new TypeAndScope();
-		ts.type = currentScope.getIdentifierType(ident);
-		ts.scope = currentScope.getIdentifierScope(ident);
+		ts.type = entry.getType();
+		ts.scope = entry.getScope();
 		nextSym++;
 		if (sym() == SymbolType.OP_PERIOD && ts.type == Type.IMPORTED_MODULE) {
 			nextSym++;
 			expect(SymbolType.IDENTIFIER, "identifier expected", false);
-			String ident2 = symbol().getText();
-			symbol().setLink(ts.scope.getIdentifierLink(ident2));
-			ts.type = ts.scope.getIdentifierType(ident2);
-			ts.scope = ts.scope.getIdentifierScope(ident2);
+			entry = ts.scope.getEntry(program.getIdentifier(symbol()));
+			program.setLink(symbol(), entry.getLink());
+			ts.type = entry.getType();
+			ts.scope = entry.getScope();
 			nextSym++;
 		}
 		return ts;
@@ -124,12 +143,12 @@ public class Parser {
 			}
 			expect(SymbolType.KEYWORD_OF, "missing OF", true);
 			Scope elemTypeScope = parseType(topLevel, linkPrefix + ".ARRAY", false);
-			Scope result = new Scope(null, linkPrefix + ".", currentScope);
-			result.putIdentifier("[]", Type.VARIABLE, elemTypeScope);
+			Scope result = new Scope(identifiers, null, linkPrefix + ".", currentScope);
+			result.putIdentifier(Identifiers.ARRAY_ELEMENT, Type.VARIABLE, elemTypeScope);
 			if (exported) {
-				Scope pubScope = new Scope(null, "@@", currentScope);
+				Scope pubScope = new Scope(identifiers, null, "@@", currentScope);
 				result.setPublicScope(pubScope);
-				pubScope.putIdentifier("[]", Type.VARIABLE, elemTypeScope.getPublicScope());
+				pubScope.putIdentifier(Identifiers.ARRAY_ELEMENT, Type.VARIABLE, elemTypeScope.getPublicScope());
 			}
 			return result;
 		} else if (sym() == SymbolType.KEYWORD_RECORD) {
@@ -146,26 +165,26 @@ public class Parser {
 				baseScope = baseTypeScope.scope;
 				expect(SymbolType.OP_RPAREN, "no )", true);
 			}
-			Scope resultScope = new Scope(baseScope, linkPrefix + ".", currentScope);
-			resultScope.putIdentifier(".", Type.VARIABLE, resultScope);
+			Scope resultScope = new Scope(identifiers, baseScope, linkPrefix + ".", currentScope);
+			resultScope.putIdentifier(Identifiers.RECORD, Type.VARIABLE, resultScope);
 			if (exported) {
-				Scope pubScope = new Scope(baseScope == null ? null : baseScope.getPublicScope(), linkPrefix + ".", currentScope.getPublicScope());
-				pubScope.putIdentifier(".", Type.VARIABLE, pubScope);
+				Scope pubScope = new Scope(identifiers, baseScope == null ? null : baseScope.getPublicScope(), linkPrefix + ".", currentScope.getPublicScope());
+				pubScope.putIdentifier(Identifiers.RECORD, Type.VARIABLE, pubScope);
 				resultScope.setPublicScope(pubScope);
 			}
 			while (sym() == SymbolType.IDENTIFIER) { // fields
-				List<Symbol[]> flds = new ArrayList<>();
+				List<int[]> flds = new ArrayList<>();
 				while (sym() == SymbolType.IDENTIFIER) {
-					Symbol s = symbol();
+					int s = symbol();
 					nextSym++;
 					if (sym() == SymbolType.OP_TIMES) {
 						Scope pubScope = resultScope.getPublicScope();
 						if (pubScope == null || !exported)
 							throw new RuntimeException("remove asterisk");
-						flds.add(new Symbol[] { s, symbol() });
+						flds.add(new int[] { s, symbol() });
 						nextSym++;
 					} else {
-						flds.add(new Symbol[] { s });
+						flds.add(new int[] { s });
 					}
 					if (sym() == SymbolType.OP_COMMA)
 						nextSym++;
@@ -173,9 +192,9 @@ public class Parser {
 						throw new RuntimeException("comma expected");
 				}
 				expect(SymbolType.OP_COLON, "colon expected", true);
-				Scope typeScope = parseType(topLevel, linkPrefix + "." + flds.get(0)[0].getText(), flds.stream().anyMatch(f -> f.length == 2));
-				for (Symbol[] fld : flds) {
-					String identifier = fld[0].getText();
+				Scope typeScope = parseType(topLevel, linkPrefix + "." + program.getText(flds.get(0)[0]), flds.stream().anyMatch(f -> f.length == 2));
+				for (int[] fld : flds) {
+					int identifier = program.getIdentifier(fld[0]);
 					resultScope.putIdentifier(identifier, Type.VARIABLE, typeScope);
 					setDefinitionLink(resultScope, fld[0]);
 					if (fld.length == 2) { // exported symbol
@@ -196,23 +215,26 @@ public class Parser {
 			expect(SymbolType.KEYWORD_TO, "no TO", true);
 			if (sym() == SymbolType.IDENTIFIER) {
 				Scope result;
-				String ident = symbol().getText();
-				if (topLevel && !currentScope.isIdentifierDefined(ident)) {
+				int ident = program.getIdentifier(symbol());
+				Scope.Entry entry = currentScope.findEntry(ident);
+				if (topLevel && entry == null) {
 					result = currentScope.makePointerScope(ident);
-					symbol().setLink(result.getIdentifierLink("^").replaceFirst("\\.\\^$", ""));
+					program.setLink(symbol(), result.getIdentifierLink(Identifiers.DEREFERENCE).replaceFirst("\\.\\^$", ""));
 					if (exported) {
 						Scope pubPointerScope = currentScope.getPublicScope().makePointerScope(ident);
 						result.setPublicScope(pubPointerScope);
 					}
 				} else {
-					Type t = currentScope.getIdentifierType(ident);
+					if (entry == null)
+						entry = currentScope.getEntry(ident);
+					Type t = entry.getType();
 					if (t == Type.TYPE) {
-						Scope s = currentScope.getIdentifierScope(ident);
-						result = new Scope(s, ident + ".", currentScope);
-						result.putIdentifier("^", Type.VARIABLE, s);
+						Scope s = entry.getScope();
+						result = new Scope(identifiers, s, identifiers.getName(ident) + ".", currentScope);
+						result.putIdentifier(Identifiers.DEREFERENCE, Type.VARIABLE, s);
 						if (s.getPublicScope() != null) {
-							Scope pub = new Scope(s.getPublicScope(), ident + ".", currentScope.getPublicScope());
-							pub.putIdentifier("^", Type.VARIABLE, s.getPublicScope());
+							Scope pub = new Scope(identifiers, s.getPublicScope(), identifiers.getName(ident) + ".", currentScope.getPublicScope());
+							pub.putIdentifier(Identifiers.DEREFERENCE, Type.VARIABLE, s.getPublicScope());
 							result.setPublicScope(pub);
 						}
 					} else if (t == Type.IMPORTED_MODULE) {
@@ -220,7 +242,7 @@ public class Parser {
 					} else {
 						throw new RuntimeException("no valid base type");
 					}
-					symbol().setLink(currentScope.getIdentifierLink(ident));
+					program.setLink(symbol(), entry.getLink());
 				}
 				nextSym++;
 				return result;
@@ -232,14 +254,14 @@ public class Parser {
 				throw new RuntimeException("Anonymous procedure types are not supported");
 			nextSym++;
 			Scope oldScope = currentScope;
-			currentScope = new Scope(currentScope, linkPrefix + ".PROCEDURE.", currentScope);
+			currentScope = new Scope(identifiers, currentScope, linkPrefix + ".PROCEDURE.", currentScope);
 			parseProcedureType(linkPrefix + ".PROCEDURE");
 			currentScope = oldScope;
-			Scope result = new Scope(null, linkPrefix + "()", currentScope);
-			result.putIdentifier("()", Type.VARIABLE, new Scope(null, linkPrefix + "()()", currentScope));
+			Scope result = new Scope(identifiers, null, linkPrefix + "()", currentScope);
+			result.putIdentifier(Identifiers.CALL_RESULT, Type.VARIABLE, new Scope(identifiers, null, linkPrefix + "()()", currentScope));
 			if (exported) {
-				Scope pubScope = new Scope(null, "@@", currentScope);
-				pubScope.putIdentifier("()", Type.VARIABLE, new Scope(null, "@@", currentScope));
+				Scope pubScope = new Scope(identifiers, null, "@@", currentScope);
+				pubScope.putIdentifier(Identifiers.CALL_RESULT, Type.VARIABLE, new Scope(identifiers, null, "@@", currentScope));
 				result.setPublicScope(pubScope);
 			}
 			return result;
@@ -248,17 +270,17 @@ public class Parser {
 		}
 	}
 
-	private void parseIdentifierList(List<Symbol[]> identifiers) {
+	private void parseIdentifierList(List<int[]> identifiers) {
 		while (sym() == SymbolType.IDENTIFIER) {
-			Symbol s = symbol();
+			int s = symbol();
 			nextSym++;
 			if (sym() == SymbolType.OP_TIMES) {
 				if (currentScope.getPublicScope() == null)
 					throw new RuntimeException("remove asterisk");
-				identifiers.add(new Symbol[] { s, symbol() });
+				identifiers.add(new int[] { s, symbol() });
 				nextSym++;
 			} else {
-				identifiers.add(new Symbol[] { s });
+				identifiers.add(new int[] { s });
 			}
 			if (sym() == SymbolType.OP_COMMA)
 				nextSym++;
@@ -271,9 +293,9 @@ public class Parser {
 	private void parseSelector(TypeAndScope ts) {
 		while (true) {
 			if (sym() == SymbolType.OP_LBRAK) {
-				if (ts.type != Type.VARIABLE || !ts.scope.isIdentifierDefined("[]"))
+				if (ts.type != Type.VARIABLE || !ts.scope.isIdentifierDefined(Identifiers.ARRAY_ELEMENT))
 					throw new RuntimeException("not an array");
-				ts.scope = ts.scope.getIdentifierScope("[]");
+				ts.scope = ts.scope.getIdentifierScope(Identifiers.ARRAY_ELEMENT);
 				do {
 					nextSym++;
 					parseExpression();
@@ -282,13 +304,14 @@ public class Parser {
 			} else if (sym() == SymbolType.OP_PERIOD) {
 				nextSym++;
 				expect(SymbolType.IDENTIFIER, "ident?", false);
-				symbol().setLink(ts.scope.getIdentifierLink(symbol().getText()));
-				ts.scope = ts.scope.getIdentifierScope(symbol().getText());
+				Scope.Entry entry = ts.scope.getEntry(program.getIdentifier(symbol()));
+				program.setLink(symbol(), entry.getLink());
+				ts.scope = entry.getScope();
 				nextSym++;
 			} else if (sym() == SymbolType.OP_ARROW) {
 				nextSym++;
-				ts.scope = ts.scope.getIdentifierScope("^");
-			} else if (sym() == SymbolType.OP_LPAREN && ts.type == Type.VARIABLE && ts.scope.isIdentifierDefined(".")) {
+				ts.scope = ts.scope.getIdentifierScope(Identifiers.DEREFERENCE);
+			} else if (sym() == SymbolType.OP_LPAREN && ts.type == Type.VARIABLE && ts.scope.isIdentifierDefined(Identifiers.RECORD)) {
 				nextSym++;
 				expect(SymbolType.IDENTIFIER, "not an identifier", false);
 				TypeAndScope guard = parseQualifiedIdentifier();
@@ -331,7 +354,7 @@ public class Parser {
 					nextSym++;
 					parseExpression();
 				}
-				while (!symbol().hasTypeOneOf(SymbolType.OP_RBRACE, SymbolType.OP_RBRAK, SymbolType.OP_RPAREN)) {
+				while (!program.hasTypeOneOf(symbol(), SymbolType.OP_RBRACE, SymbolType.OP_RBRAK, SymbolType.OP_RPAREN)) {
 					if (sym() == SymbolType.OP_COMMA)
 						nextSym++;
 					else if (sym() != SymbolType.OP_RBRACE)
@@ -347,7 +370,7 @@ public class Parser {
 		} else if (sym() == SymbolType.OP_NOT) {
 			nextSym++;
 			parseFactor();
-		} else if (symbol().hasTypeOneOf(SymbolType.CONST, SymbolType.KEYWORD_NIL, SymbolType.KEYWORD_FALSE, SymbolType.KEYWORD_TRUE)) {
+		} else if (program.hasTypeOneOf(symbol(), SymbolType.CONST, SymbolType.KEYWORD_NIL, SymbolType.KEYWORD_FALSE, SymbolType.KEYWORD_TRUE)) {
 			nextSym++;
 		} else {
 			throw new RuntimeException("Not a factor");
@@ -358,10 +381,10 @@ public class Parser {
 
 	private void parseExpression() {
 		while (true) {
-			if (symbol().hasTypeOneOf(SymbolType.OP_PLUS, SymbolType.OP_MINUS))
+			if (program.hasTypeOneOf(symbol(), SymbolType.OP_PLUS, SymbolType.OP_MINUS))
 				nextSym++;
 			parseFactor();
-			if (!symbol().hasTypeOneOf(OPERATORS))
+			if (!program.hasTypeOneOf(symbol(), OPERATORS))
 				break;
 			nextSym++;
 		}
@@ -382,17 +405,17 @@ public class Parser {
 		} else if (sym() == SymbolType.KEYWORD_ARRAY) {
 			nextSym++;
 			expect(SymbolType.KEYWORD_OF, "OF ?", true);
-			Scope result = new Scope(null, linkPrefix + ".", currentScope);
-			result.putIdentifier("[]", Type.VARIABLE, parseFormalType(linkPrefix + ".ARRAY"));
+			Scope result = new Scope(identifiers, null, linkPrefix + ".", currentScope);
+			result.putIdentifier(Identifiers.ARRAY_ELEMENT, Type.VARIABLE, parseFormalType(linkPrefix + ".ARRAY"));
 			return result;
 		} else if (sym() == SymbolType.KEYWORD_PROCEDURE) {
 			nextSym++;
 			Scope oldScope = currentScope;
-			currentScope = new Scope(currentScope, linkPrefix + ".", currentScope);
+			currentScope = new Scope(identifiers, currentScope, linkPrefix + ".", currentScope);
 			parseProcedureType(linkPrefix + ".PROCEDURE");
 			currentScope = oldScope;
-			Scope result = new Scope(null, "@@", null);
-			result.putIdentifier("()", Type.VARIABLE, new Scope(null, "@@", null));
+			Scope result = new Scope(identifiers, null, "@@", null);
+			result.putIdentifier(Identifiers.CALL_RESULT, Type.VARIABLE, new Scope(identifiers, null, "@@", null));
 			return result;
 		} else {
 			throw new RuntimeException("identifier expected");
@@ -406,13 +429,13 @@ public class Parser {
 		if (sym() == SymbolType.KEYWORD_VAR)
 			nextSym++;
 		while (sym() == SymbolType.IDENTIFIER) {
-			List<Symbol[]> idents = new ArrayList<>();
+			List<int[]> idents = new ArrayList<>();
 			parseIdentifierList(idents);
 			Scope typeScope = parseFormalType(linkPrefix);
-			for (Symbol[] ident : idents) {
+			for (int[] ident : idents) {
 				if (ident.length == 2)
 					throw new RuntimeException("Exported procedure parameter?");
-				currentScope.putIdentifier(ident[0].getText(), Type.VARIABLE, typeScope);
+				currentScope.putIdentifier(program.getIdentifier(ident[0]), Type.VARIABLE, typeScope);
 				setDefinitionLink(currentScope, ident[0]);
 			}
 			if (sym() == SymbolType.OP_RPAREN)
@@ -495,9 +518,10 @@ public class Parser {
 			} else if (sym() == SymbolType.KEYWORD_CASE) {
 				nextSym++;
 				expect(SymbolType.IDENTIFIER, "ident expected", false);
-				String ident = symbol().getText();
-				symbol().setLink(currentScope.getIdentifierLink(ident));
-				if (currentScope.getIdentifierType(ident) != Type.VARIABLE)
+				int ident = program.getIdentifier(symbol());
+				Scope.Entry entry = currentScope.getEntry(ident);
+				program.setLink(symbol(), entry.getLink());
+				if (entry.getType() != Type.VARIABLE)
 					throw new RuntimeException("var expected");
 				nextSym++;
 				expect(SymbolType.KEYWORD_OF, "OF expected", true);
@@ -507,7 +531,7 @@ public class Parser {
 						throw new RuntimeException("type expected");
 					expect(SymbolType.OP_COLON, ": expected", true);
 					Scope oldScope = currentScope;
-					currentScope = new Scope(currentScope, "", currentScope);
+					currentScope = new Scope(identifiers, currentScope, "", currentScope);
 					currentScope.putIdentifier(ident, Type.VARIABLE, newTypeTS.scope);
 					parseStatementSequence();
 					currentScope = oldScope;
@@ -529,7 +553,7 @@ public class Parser {
 		if (sym() == SymbolType.KEYWORD_CONST) {
 			nextSym++;
 			while (sym() == SymbolType.IDENTIFIER) {
-				String cnst = symbol().getText();
+				int cnst = program.getIdentifier(symbol());
 				currentScope.putIdentifier(cnst, Scope.Type.CONSTANT, null);
 				setDefinitionLink(currentScope, symbol());
 				nextSym++;
@@ -542,10 +566,10 @@ public class Parser {
 		if (sym() == SymbolType.KEYWORD_TYPE) {
 			nextSym++;
 			while (sym() == SymbolType.IDENTIFIER) {
-				Symbol symbol = symbol();
-				String identifier = symbol.getText();
+				int symbol = symbol();
+				int identifier = program.getIdentifier(symbol);
 				nextSym++;
-				Symbol exportSymbol = null;
+				int exportSymbol = -1;
 				if (sym() == SymbolType.OP_TIMES) {
 					if (currentScope.getPublicScope() == null)
 						throw new RuntimeException("remove asterisk");
@@ -553,9 +577,9 @@ public class Parser {
 					nextSym++;
 				}
 				expect(SymbolType.OP_EQL, "=?", true);
-				Scope typeScope = parseType(true, identifier, exportSymbol != null);
+				Scope typeScope = parseType(true, identifiers.getName(identifier), exportSymbol != -1);
 				currentScope.putIdentifier(identifier, Type.TYPE, typeScope);
-				if (exportSymbol != null) {
+				if (exportSymbol != -1) {
 					Scope pubScope = currentScope.getPublicScope();
 					Scope identPubScope = typeScope.getPublicScope();
 					if (identPubScope == null)
@@ -573,11 +597,11 @@ public class Parser {
 		if (sym() == SymbolType.KEYWORD_VAR) {
 			nextSym++;
 			while (sym() == SymbolType.IDENTIFIER) {
-				List<Symbol[]> vars = new ArrayList<>();
+				List<int[]> vars = new ArrayList<>();
 				parseIdentifierList(vars);
-				Scope typeScope = parseType(true, vars.get(0)[0].getText(), vars.stream().anyMatch(v -> v.length == 2));
-				for (Symbol[] var : vars) {
-					String identifier = var[0].getText();
+				Scope typeScope = parseType(true, program.getText(vars.get(0)[0]), vars.stream().anyMatch(v -> v.length == 2));
+				for (int[] var : vars) {
+					int identifier = program.getIdentifier(var[0]);
 					currentScope.putIdentifier(identifier, Type.VARIABLE, typeScope);
 					setDefinitionLink(currentScope, var[0]);
 					if (var.length == 2) { // exported symbol
@@ -591,10 +615,10 @@ public class Parser {
 		}
 	}
 
-	protected void setExportUsageLink(Scope scope, Symbol exportSymbol, String identifier) {
-		if (exportSymbol != null) {
+	protected void setExportUsageLink(Scope scope, int exportSymbol, int identifier) {
+		if (exportSymbol != -1) {
 			String link = scope.getPublicScope().getIdentifierLink(identifier);
-			exportSymbol.setLink(link.replace(".html#", "-usage.html#"));
+			program.setLink(exportSymbol, link.replace(".html#", "-usage.html#"));
 		}
 	}
 
@@ -605,14 +629,16 @@ public class Parser {
 			nextSym++;
 		}
 		expect(SymbolType.IDENTIFIER, "identifier expected", false);
-		String procid = symbol().getText();
+		int procid = program.getIdentifier(symbol());
 		currentScope.putIdentifier(procid, Scope.Type.PROCEDURE, null);
 		setDefinitionLink(currentScope, symbol());
+		int procedure = program.addProcedure(symbol());
 		nextSym++;
 		checkExport(procid);
 		Scope oldScope = currentScope;
-		currentScope = new Scope(currentScope, procid + ".PROCEDURE.", currentScope);
-		parseProcedureType(procid + ".PROCEDURE");
+		String procName = identifiers.getName(procid);
+		currentScope = new Scope(identifiers, currentScope, procName + ".PROCEDURE.", currentScope);
+		parseProcedureType(procName + ".PROCEDURE");
 		expect(SymbolType.OP_SEMICOLON, "no ;", true);
 		parseDeclarations();
 		while (sym() == SymbolType.KEYWORD_PROCEDURE) {
@@ -630,9 +656,10 @@ public class Parser {
 		currentScope = oldScope;
 		expect(SymbolType.KEYWORD_END, "no END", true);
 		expect(SymbolType.IDENTIFIER, "no proc id", false);
-		if (!symbol().getText().equals(procid))
+		if (program.getIdentifier(symbol()) != procid)
 			throw new RuntimeException("no match");
-		symbol().setLink(currentScope.getIdentifierLink(procid));
+		program.setLink(symbol(), currentScope.getIdentifierLink(procid));
+		program.setProcedureEnd(procedure, symbol());
 		nextSym++;
 	}
 
@@ -641,34 +668,34 @@ public class Parser {
 		if (sym() == SymbolType.OP_TIMES)
 			nextSym++;
 		expect(SymbolType.IDENTIFIER, "identifier expected", false);
-		String moduleName = symbol().getText();
-		symbol().setLink("=MODULE");
+		String moduleName = program.getText(symbol());
+		program.setLink(symbol(), "=MODULE");
 		nextSym++;
 		expect(SymbolType.OP_SEMICOLON, "no ;", true);
 		if (sym() == SymbolType.KEYWORD_IMPORT) {
 			nextSym++;
 			while (sym() == SymbolType.IDENTIFIER) {
-				String localName = symbol().getText(), importedModule = localName;
-				symbol().setLink("=" + localName);
+				int localIdent = program.getIdentifier(symbol());
+				String localName = program.getText(symbol()), importedModule = localName;
+				program.setLink(symbol(), "=" + localName);
 				nextSym++;
 				if (sym() == SymbolType.OP_BECOMES) {
 					nextSym++;
 					expect(SymbolType.IDENTIFIER, "id expected", false);
-					importedModule = symbol().getText();
-					symbol().setLink(importedModule + ".html");
+					importedModule = program.getText(symbol());
+					program.setLink(symbol(), importedModule + ".html");
 					nextSym++;
 				}
 				if (!publicScopes.containsKey(importedModule))
 					throw new RuntimeException("Importing unknown module: " + importedModule);
-				currentScope.putIdentifier(localName, Scope.Type.IMPORTED_MODULE, publicScopes.get(importedModule));
+				currentScope.putIdentifier(localIdent, Scope.Type.IMPORTED_MODULE, publicScopes.get(importedModule));
 				if (sym() != SymbolType.OP_SEMICOLON)
 					expect(SymbolType.OP_COMMA, "comma missing", true);
 			}
 			expect(SymbolType.OP_SEMICOLON, "no ;", true);
 		}
-		Scope pubScope = new Scope(null, moduleName + ".html#", null);
-		currentScope.setPublicScope(pubScope);
-		publicScopes.put(moduleName, pubScope);
+		publicScope = new Scope(identifiers, null, moduleName + ".html#", null);
+		currentScope.setPublicScope(publicScope);
 		parseDeclarations();
 		while (sym() == SymbolType.KEYWORD_PROCEDURE) {
 			parseProcedureDeclaration();
@@ -680,9 +707,9 @@ public class Parser {
 		}
 		expect(SymbolType.KEYWORD_END, "no END", true);
 		expect(SymbolType.IDENTIFIER, "identifier missing", false);
-		if (!symbol().getText().equals(moduleName))
+		if (!program.getText(symbol()).equals(moduleName))
 			throw new RuntimeException("no match");
-		symbol().setLink("#MODULE");
+		program.setLink(symbol(), "#MODULE");
 		nextSym++;
 		expect(SymbolType.OP_PERIOD, "period missing", false);
 		return moduleName;
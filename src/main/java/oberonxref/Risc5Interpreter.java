@@ -0,0 +1,546 @@
+package oberonxref;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interpreter for RISC5 code that counts how often each instruction is
+ * executed. Object files are loaded and linked like the module loader of
+ * Project Oberon does it, imports first, and module bodies are run after
+ * loading.
+ *
+ * The environment is synthetic, since there is no Oberon system underneath:
+ * procedures of modules without object file return immediately and their
+ * variables read as zero, input devices never have data, output is discarded
+ * and the millisecond timer is derived from the number of executed
+ * instructions. Trap 0 (<code>NEW</code>) allocates from a heap that is never
+ * collected; all other traps stop the run. Floating point instructions are
+ * approximated with Java floats.
+ *
+ * Memory is one word array: a stop address and a procedure stub, the module
+ * table at 20H, the modules (type descriptors, variables, strings and code),
+ * then the heap, which grows upwards, and the stack, which grows downwards
+ * from the end of memory.
+ */
+public class Risc5Interpreter {
+
+	/** Return address that ends a run */
+	private static final int STOP = 0;
+
+	/** Procedure that returns immediately, for procedures of missing modules */
+	private static final int STUB = 4, STUB_CODE = 0xC700000F;
+
+	/**
+	 * Trap 15, placed after the end of memory, so that running past the end
+	 * does not need a check for every instruction
+	 */
+	private static final int GUARD_CODE = 0xD70000FC;
+
+	private static final int MT_ORIGIN = 0x20, MAX_MODULES = 256;
+
+	/**
+	 * Zeroed variables that stand in for the variables of missing modules,
+	 * followed by a copy of the stub, so that procedures of missing modules
+	 * can be addressed relative to their data as well
+	 */
+	private static final int MISSING_DATA_SIZE = 0x1000;
+
+	/** Space kept free for the stack when allocating */
+	private static final int STACK_SIZE = 0x10000;
+
+	/** Input/output registers are the last 64 bytes of the address space */
+	private static final int IO_START = -64, IO_TIMER = -64;
+
+	/** Instructions per millisecond, for a RISC5 running at 25 MHz */
+	private static final int STEPS_PER_MILLISECOND = 25000;
+
+	private static final int U = 0x20000000, V = 0x10000000;
+
+	private final int[] memory;
+	private final long[] counts;
+	/** Memory size in words, without the guard */
+	private final int size;
+	private final int[] registers = new int[16];
+	private final int missingData;
+	private final Map<String, LoadedModule> modules = new LinkedHashMap<>();
+	private final List<String> abandonedBodies = new ArrayList<>();
+	private boolean n, z, c, v;
+	private int h, allocated, moduleCount = 1;
+	private long steps, bodyStepLimit = Long.MAX_VALUE;
+	/** Instructions executed before the counts were cleared, for the timer */
+	private long earlierSteps;
+
+	/**
+	 * @param memorySize
+	 *            Memory size in bytes
+	 */
+	public Risc5Interpreter(int memorySize) {
+		size = memorySize / 4;
+		memory = new int[size + 1];
+		counts = new long[memory.length];
+		memory[STUB / 4] = STUB_CODE;
+		memory[size] = GUARD_CODE;
+		allocated = MT_ORIGIN + MAX_MODULES * 4;
+		missingData = allocate(MISSING_DATA_SIZE + 4);
+		memory[(missingData + MISSING_DATA_SIZE) / 4] = STUB_CODE;
+		// module number 0 is never assigned and stands for missing modules
+		memory[MT_ORIGIN / 4] = missingData;
+	}
+
+	/**
+	 * Limit the number of instructions a module body may execute. Bodies that
+	 * exceed it (like the main loop of an Oberon system) or that trap are
+	 * abandoned, and loading continues with the next module.
+	 */
+	public void setBodyStepLimit(long bodyStepLimit) {
+		this.bodyStepLimit = bodyStepLimit;
+	}
+
+	/**
+	 * Load a module and its imports, and run their bodies. Modules without
+	 * object file are skipped.
+	 */
+	public void load(String module, Map<String, File> objectFiles) throws IOException {
+		if (modules.containsKey(module) || !objectFiles.containsKey(module))
+			return;
+		modules.put(module, null);
+		Disassembly disassembly = Disassembly.disassembly(objectFiles.get(module), false);
+		LoadedModule[] imports = new LoadedModule[disassembly.getModuleCount()];
+		for (int mno = 1; mno < imports.length; mno++) {
+			load(disassembly.getModuleName(mno), objectFiles);
+			imports[mno] = modules.get(disassembly.getModuleName(mno));
+		}
+		if (moduleCount == MAX_MODULES)
+			throw new RuntimeException("Too many modules when loading " + module);
+		int[] typeDescriptors = disassembly.getTypeDescriptors();
+		byte[] strings = disassembly.getStringData();
+		int stringStart = typeDescriptors.length * 4 + disassembly.getVariableSize();
+		int codeStart = (stringStart + strings.length + 3) & ~3;
+		int data = allocate(codeStart + disassembly.getInstructionCount() * 4);
+		LoadedModule loaded = new LoadedModule(module, moduleCount++, disassembly, data, data + codeStart);
+		imports[0] = loaded;
+		System.arraycopy(typeDescriptors, 0, memory, data / 4, typeDescriptors.length);
+		for (int i = 0; i < strings.length; i++) {
+			int address = data + stringStart + i, shift = (address & 3) * 8;
+			memory[address >>> 2] |= (strings[i] & 0xFF) << shift;
+		}
+		memory[MT_ORIGIN / 4 + loaded.number] = data;
+		link(loaded, imports);
+		modules.put(module, loaded);
+		if (disassembly.getEntryPoint() != -1) {
+			String reason = run(loaded.code / 4 + disassembly.getEntryPoint(), bodyStepLimit);
+			if (reason != null)
+				abandonedBodies.add(module + ": " + reason);
+		}
+	}
+
+	/**
+	 * Apply the fixups of a module, like the module loader of Project Oberon.
+	 */
+	private void link(LoadedModule module, LoadedModule[] imports) {
+		Disassembly disassembly = module.disassembly;
+		Instructions code = disassembly.getInstructions();
+		int base = module.code / 4;
+		for (int i = 0; i < code.size(); i++) {
+			int w = disassembly.getOpcode(i);
+			switch (code.getFixup(i)) {
+			case Instructions.FIXUP_PROCEDURE: {
+				int target = procedureAddress(getImport(imports, code.getB(i)), code.getImmediate(i));
+				w = 0xF7000000 | ((target / 4 - (base + i) - 1) & 0xFFFFFF);
+				break;
+			}
+			case Instructions.FIXUP_DATA: {
+				LoadedModule owner = getImport(imports, code.getB(i));
+				w = (w & 0xFF000000) | Instructions.REGISTER_MT << 20 | (owner == null ? 0 : owner.number) * 4;
+				break;
+			}
+			case Instructions.FIXUP_ADDRESS: {
+				// variable or procedure of the module loaded by the previous instruction
+				LoadedModule imported = getImport(imports, code.getB(i - 1));
+				int offset, vno = w & 0xFF;
+				boolean procedure = (w >>> 8 & 1) == 1;
+				if (imported == null) {
+					offset = procedure ? MISSING_DATA_SIZE : 0;
+				} else if (procedure) {
+					offset = procedureAddress(imported, vno) - imported.data;
+				} else {
+					offset = getEntryOffset(imported, vno);
+				}
+				if (offset < 0 || offset > 0xFFFF)
+					throw new RuntimeException("Offset " + offset + " of entry " + vno + " does not fit into " + module.name + " at instruction " + i);
+				w = (w & 0xFFFF0000) | offset;
+				break;
+			}
+			}
+			memory[base + i] = w;
+		}
+		int data = module.data / 4, typeDescriptorCount = disassembly.getTypeDescriptors().length;
+		for (int t = disassembly.getTypeFixups(); t > 0 && t < typeDescriptorCount;) {
+			int w = memory[data + t];
+			int mno = w >>> 24 & 0xF, vno = w >>> 12 & 0xFFF;
+			LoadedModule imported = getImport(imports, mno);
+			if (imported == null)
+				memory[data + t] = missingData;
+			else if (mno == 0)
+				memory[data + t] = module.data + vno;
+			else
+				memory[data + t] = imported.data + getEntryOffset(imported, vno);
+			t -= w & 0xFFF;
+		}
+	}
+
+	private static LoadedModule getImport(LoadedModule[] imports, int mno) {
+		return mno < imports.length ? imports[mno] : null;
+	}
+
+	private static int procedureAddress(LoadedModule module, int pno) {
+		if (module == null)
+			return STUB;
+		if (pno >= module.disassembly.getEntryCount() || module.disassembly.getEntry(pno) == -1)
+			throw new RuntimeException("Entry " + pno + " of " + module.name + " is not a procedure");
+		return module.code + module.disassembly.getEntry(pno) * 4;
+	}
+
+	private static int getEntryOffset(LoadedModule module, int vno) {
+		if (vno >= module.disassembly.getEntryCount())
+			throw new RuntimeException("Entry " + vno + " of " + module.name + " does not exist");
+		return module.disassembly.getEntryOffset(vno);
+	}
+
+	/**
+	 * Allocate zeroed memory below the stack.
+	 *
+	 * @return the byte address
+	 */
+	private int allocate(int size) {
+		int address = allocated;
+		if (size < 0 || size > this.size * 4 - STACK_SIZE - address)
+			throw new RuntimeException("Out of memory when allocating " + size + " bytes");
+		allocated += (size + 3) & ~3;
+		// the stack may have been there before
+		Arrays.fill(memory, address / 4, allocated / 4, 0);
+		return address;
+	}
+
+	/**
+	 * Run a command of a loaded module. The execution counts and steps of the
+	 * module bodies are cleared first, so that they only cover the command.
+	 *
+	 * @return why the command stopped before it returned, or
+	 *         <code>null</code> if it returned
+	 */
+	public String call(String module, String command, long stepLimit) {
+		LoadedModule loaded = modules.get(module);
+		if (loaded == null)
+			throw new RuntimeException("Module " + module + " is not loaded");
+		Disassembly disassembly = loaded.disassembly;
+		for (int k = 0; k < disassembly.getCommandCount(); k++) {
+			if (disassembly.getCommandName(k).equals(command) && disassembly.getCommand(k) != -1) {
+				Arrays.fill(counts, 0);
+				earlierSteps += steps;
+				steps = 0;
+				return run(loaded.code / 4 + disassembly.getCommand(k), stepLimit);
+			}
+		}
+		throw new RuntimeException("Command " + module + "." + command + " not found");
+	}
+
+	/**
+	 * Run code until it returns to {@link #STOP}, with a fresh stack.
+	 *
+	 * @return why the run stopped before, or <code>null</code>
+	 */
+	private String run(int start, long stepLimit) {
+		int[] memory = this.memory, r = registers;
+		long[] counts = this.counts;
+		int size = this.size;
+		boolean n = this.n, z = this.z, c = this.c, v = this.v;
+		int h = this.h, pc = start;
+		long executed = 0;
+		r[Instructions.REGISTER_MT] = MT_ORIGIN;
+		r[Instructions.REGISTER_SP] = size * 4;
+		r[Instructions.REGISTER_LNK] = STOP;
+		try {
+			while (true) {
+				if (executed == stepLimit)
+					return "stopped after " + executed + " instructions";
+				int ir = memory[pc];
+				counts[pc]++;
+				executed++;
+				pc++;
+				switch (ir >>> 28) {
+				case 0:
+				case 1:
+				case 2:
+				case 3:
+				case 4:
+				case 5:
+				case 6:
+				case 7: {
+					// register instructions
+					int b = r[ir >>> 20 & 0xF], cv, a;
+					if ((ir & 0x40000000) == 0)
+						cv = r[ir & 0xF];
+					else if ((ir & V) == 0)
+						cv = ir & 0xFFFF;
+					else
+						cv = ir | 0xFFFF0000;
+					switch (ir >>> 16 & 0xF) {
+					case 0: // MOV
+						if ((ir & U) == 0)
+							a = cv;
+						else if ((ir & 0x40000000) != 0)
+							a = cv << 16;
+						else if ((ir & V) != 0)
+							a = (n ? 0x80000000 : 0) | (z ? 0x40000000 : 0) | (c ? 0x20000000 : 0) | (v ? 0x10000000 : 0);
+						else
+							a = h;
+						break;
+					case 1: // LSL
+						a = b << cv;
+						break;
+					case 2: // ASR
+						a = b >> cv;
+						break;
+					case 3: // ROR
+						a = Integer.rotateRight(b, cv);
+						break;
+					case 4: // AND
+						a = b & cv;
+						break;
+					case 5: // ANN
+						a = b & ~cv;
+						break;
+					case 6: // IOR
+						a = b | cv;
+						break;
+					case 7: // XOR
+						a = b ^ cv;
+						break;
+					case 8: { // ADD, with carry in (u)
+						long sum = (b & 0xFFFFFFFFL) + (cv & 0xFFFFFFFFL) + ((ir & U) != 0 && c ? 1 : 0);
+						a = (int) sum;
+						c = (sum >>> 32) != 0;
+						v = ((a ^ cv) & (a ^ b)) < 0;
+						break;
+					}
+					case 9: { // SUB, with borrow in (u)
+						long difference = (b & 0xFFFFFFFFL) - (cv & 0xFFFFFFFFL) - ((ir & U) != 0 && c ? 1 : 0);
+						a = (int) difference;
+						c = difference < 0;
+						v = ((b ^ cv) & (a ^ b)) < 0;
+						break;
+					}
+					case 10: { // MUL
+						long product = (ir & U) == 0 ? (long) b * cv : (b & 0xFFFFFFFFL) * (cv & 0xFFFFFFFFL);
+						a = (int) product;
+						h = (int) (product >>> 32);
+						break;
+					}
+					case 11: // DIV
+						if (cv == 0) {
+							a = 0;
+							h = b;
+						} else if ((ir & U) == 0) {
+							a = Math.floorDiv(b, cv);
+							h = Math.floorMod(b, cv);
+						} else {
+							a = Integer.divideUnsigned(b, cv);
+							h = Integer.remainderUnsigned(b, cv);
+						}
+						break;
+					case 12: // FAD, also FLT (u) and FLOOR (v)
+						if ((ir & U) != 0)
+							a = Float.floatToRawIntBits(b);
+						else if ((ir & V) != 0)
+							a = (int) Math.floor(Float.intBitsToFloat(b));
+						else
+							a = Float.floatToRawIntBits(Float.intBitsToFloat(b) + Float.intBitsToFloat(cv));
+						break;
+					case 13: // FSB
+						a = Float.floatToRawIntBits(Float.intBitsToFloat(b) - Float.intBitsToFloat(cv));
+						break;
+					case 14: // FML
+						a = Float.floatToRawIntBits(Float.intBitsToFloat(b) * Float.intBitsToFloat(cv));
+						break;
+					default: // FDV
+						a = Float.floatToRawIntBits(Float.intBitsToFloat(b) / Float.intBitsToFloat(cv));
+						break;
+					}
+					r[ir >>> 24 & 0xF] = a;
+					n = a < 0;
+					z = a == 0;
+					break;
+				}
+				case 8:
+				case 9: {
+					// loads, of a word or (v) a byte
+					int address = r[ir >>> 20 & 0xF] + (ir << 12 >> 12), a;
+					if (address >>> 2 < size)
+						a = memory[address >>> 2];
+					else if (address >= IO_START && address < 0)
+						a = readInput(address, earlierSteps + steps + executed);
+					else
+						return "memory access at " + Integer.toHexString(address) + "H in " + describe(pc - 1);
+					if ((ir & V) != 0)
+						a = a >>> (address & 3) * 8 & 0xFF;
+					r[ir >>> 24 & 0xF] = a;
+					n = a < 0;
+					z = a == 0;
+					break;
+				}
+				case 10:
+				case 11: {
+					// stores, of a word or (v) a byte
+					int address = r[ir >>> 20 & 0xF] + (ir << 12 >> 12), a = r[ir >>> 24 & 0xF];
+					if (address >>> 2 < size) {
+						if ((ir & V) == 0) {
+							memory[address >>> 2] = a;
+						} else {
+							int shift = (address & 3) * 8;
+							memory[address >>> 2] = memory[address >>> 2] & ~(0xFF << shift) | (a & 0xFF) << shift;
+						}
+					} else if (address < IO_START || address >= 0) {
+						return "memory access at " + Integer.toHexString(address) + "H in " + describe(pc - 1);
+					}
+					break;
+				}
+				default: {
+					// branches, to a register (u = 0) or relative, and with link (v)
+					boolean taken;
+					switch (ir >>> 24 & 7) {
+					case 0: // MI
+						taken = n;
+						break;
+					case 1: // EQ
+						taken = z;
+						break;
+					case 2: // CS
+						taken = c;
+						break;
+					case 3: // VS
+						taken = v;
+						break;
+					case 4: // LS
+						taken = c || z;
+						break;
+					case 5: // LT
+						taken = n != v;
+						break;
+					case 6: // LE
+						taken = n != v || z;
+						break;
+					default:
+						taken = true;
+					}
+					if (taken == ((ir & 0x08000000) != 0))
+						break;
+					if ((ir & (U | V | 0xF)) == (V | Instructions.REGISTER_MT)) {
+						// BL MT is a trap, with the trap number and source position in the offset
+						int trap = ir >>> 4 & 0xF;
+						if (pc - 1 == size)
+							return "execution past the end of memory";
+						if (trap != 0)
+							return "trap " + trap + " at source position " + (ir >>> 8 & 0xFFFF) + " in " + describe(pc - 1);
+						// R0 holds the address of the pointer and R1 the type tag, whose first word is the size
+						if (r[0] >>> 2 >= size || r[1] >>> 2 >= size)
+							return "NEW with invalid address in " + describe(pc - 1);
+						int length = memory[r[1] >>> 2];
+						if (length < 0 || length > size * 4 - STACK_SIZE - allocated - 8)
+							return "out of memory in " + describe(pc - 1);
+						// the type tag is kept 8 bytes before the record
+						int block = allocate(length + 8);
+						memory[block / 4] = r[1];
+						memory[r[0] >>> 2] = block + 8;
+						break;
+					}
+					if ((ir & V) != 0) {
+						r[Instructions.REGISTER_LNK] = pc * 4;
+						n = false;
+						z = pc == 0;
+					}
+					int target = (ir & U) == 0 ? r[ir & 0xF] >>> 2 : pc + (ir << 8 >> 8);
+					if (target == STOP)
+						return null;
+					if (target < 0 || target >= size)
+						return "branch to " + Integer.toHexString(target * 4) + "H in " + describe(pc - 1);
+					pc = target;
+				}
+				}
+			}
+		} finally {
+			steps += executed;
+			this.n = n;
+			this.z = z;
+			this.c = c;
+			this.v = v;
+			this.h = h;
+		}
+	}
+
+	private static int readInput(int address, long steps) {
+		return address == IO_TIMER ? (int) (steps / STEPS_PER_MILLISECOND) : 0;
+	}
+
+	/**
+	 * Describe a code address by module and instruction index, for messages.
+	 */
+	private String describe(int word) {
+		for (LoadedModule module : modules.values()) {
+			if (module != null && word >= module.code / 4 && word < module.code / 4 + module.disassembly.getInstructionCount())
+				return module.name + " at instruction " + (word - module.code / 4);
+		}
+		return "memory at " + Integer.toHexString(word * 4) + "H";
+	}
+
+	/**
+	 * Return the bodies that did not return, with the reason.
+	 */
+	public List<String> getAbandonedBodies() {
+		return abandonedBodies;
+	}
+
+	/**
+	 * Return the number of instructions executed by the last command, or by
+	 * the module bodies if no command was called yet.
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Return the execution counts of the instructions of all loaded modules,
+	 * indexed by instruction.
+	 */
+	public Map<String, long[]> getExecutionCounts() {
+		Map<String, long[]> result = new LinkedHashMap<>();
+		for (LoadedModule module : modules.values()) {
+			if (module != null) {
+				int start = module.code / 4;
+				result.put(module.name, Arrays.copyOfRange(counts, start, start + module.disassembly.getInstructionCount()));
+			}
+		}
+		return result;
+	}
+
+	private static class LoadedModule {
+		private final String name;
+		private final int number;
+		private final Disassembly disassembly;
+		/** Byte addresses */
+		private final int data, code;
+
+		private LoadedModule(String name, int number, Disassembly disassembly, int data, int code) {
+			this.name = name;
+			this.number = number;
+			this.disassembly = disassembly;
+			this.data = data;
+			this.code = code;
+		}
+	}
+}
@@ -1,16 +1,31 @@
 package oberonxref;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
 import oberonxref.Symbol.SymbolType;
 
 public class Scanner {
 
-	private static SymbolType[] singleSymbols = new SymbolType['~' + 1];
-	private static Map<String, SymbolType> doubleSymbols = new HashMap<>();
+	private static SymbolType[] singleSymbols = new SymbolType[256];
+	private static SymbolType[] doubleSymbols = new SymbolType[256];
+	private static char[] doubleSymbolSecondChars = new char[256];
+
+	// shared text of all symbol types that always have the same text
+	private static final String[] canonicalTexts = new String[SymbolType.values().length];
+	private static final String[] spaces = new String[64];
+
+	// perfect hash table of all keywords, indexed by (hash * multiplier) >>> shift
+	private static final SymbolType[] keywordTypes;
+	private static final byte[][] keywordTexts;
+	private static final int keywordMultiplier, keywordShift, minKeywordLength, maxKeywordLength;
 
 	static {
 		singleSymbols['#'] = SymbolType.OP_NEQ;
@@ -31,78 +46,202 @@ public class Scanner {
 		singleSymbols['|'] = SymbolType.OP_BAR;
 		singleSymbols['~'] = SymbolType.OP_NOT;
 		singleSymbols['.'] = SymbolType.OP_PERIOD;
-		doubleSymbols.put("..", SymbolType.OP_UPTO);
+		doubleSymbols['.'] = SymbolType.OP_UPTO;
+		doubleSymbolSecondChars['.'] = '.';
 		singleSymbols[':'] = SymbolType.OP_COLON;
-		doubleSymbols.put(":=", SymbolType.OP_BECOMES);
+		doubleSymbols[':'] = SymbolType.OP_BECOMES;
+		doubleSymbolSecondChars[':'] = '=';
 		singleSymbols['>'] = SymbolType.OP_GTR;
-		doubleSymbols.put(">=", SymbolType.OP_GEQ);
+		doubleSymbols['>'] = SymbolType.OP_GEQ;
+		doubleSymbolSecondChars['>'] = '=';
 		singleSymbols['<'] = SymbolType.OP_LSS;
-		doubleSymbols.put("<=", SymbolType.OP_LEQ);
+		doubleSymbols['<'] = SymbolType.OP_LEQ;
+		doubleSymbolSecondChars['<'] = '=';
+		for (int ch = 0; ch < singleSymbols.length; ch++) {
+			if (singleSymbols[ch] != null)
+				canonicalTexts[singleSymbols[ch].ordinal()] = String.valueOf((char) ch);
+			if (doubleSymbols[ch] != null)
+				canonicalTexts[doubleSymbols[ch].ordinal()] = "" + (char) ch + doubleSymbolSecondChars[ch];
+		}
+		canonicalTexts[SymbolType.OP_LPAREN.ordinal()] = "(";
+		canonicalTexts[SymbolType.SKIP_LINEBREAK.ordinal()] = "\n";
+		for (Map.Entry<String, SymbolType> e : Symbol.KEYWORD_MAP.entrySet()) {
+			canonicalTexts[e.getValue().ordinal()] = e.getKey();
+		}
+		spaces[0] = "";
+		for (int i = 1; i < spaces.length; i++) {
+			spaces[i] = spaces[i - 1] + " ";
+		}
+	}
+
+	static {
+		int minLength = Integer.MAX_VALUE, maxLength = 0;
+		for (String keyword : Symbol.KEYWORD_MAP.keySet()) {
+			minLength = Math.min(minLength, keyword.length());
+			maxLength = Math.max(maxLength, keyword.length());
+		}
+		minKeywordLength = minLength;
+		maxKeywordLength = maxLength;
+		SymbolType[] types = null;
+		byte[][] texts = null;
+		int multiplier = 0, shift = 32;
+		boolean found = false;
+		search: for (int bits = 6; bits < 16; bits++) {
+			shift = 32 - bits;
+			for (multiplier = 0x9E3779B1; multiplier != 0x9E3779B1 + (1 << 20); multiplier += 2) {
+				types = new SymbolType[1 << bits];
+				texts = new byte[1 << bits][];
+				boolean collision = false;
+				for (Map.Entry<String, SymbolType> e : Symbol.KEYWORD_MAP.entrySet()) {
+					int slot = (e.getKey().hashCode() * multiplier) >>> shift;
+					if (types[slot] != null) {
+						collision = true;
+						break;
+					}
+					types[slot] = e.getValue();
+					texts[slot] = e.getKey().getBytes(StandardCharsets.ISO_8859_1);
+				}
+				if (!collision) {
+					found = true;
+					break search;
+				}
+			}
+		}
+		if (!found)
+			throw new IllegalStateException("No collision-free hash found for the keywords");
+		keywordTypes = types;
+		keywordTexts = texts;
+		keywordMultiplier = multiplier;
+		keywordShift = shift;
 	}
 
-	private String text;
-	private int nextPos;
-	List<Symbol> result = new ArrayList<>();
+	private final ByteBuffer text;
+	private final int length;
+	private int nextPos, commentLineStart;
+	private final TokenBuffer result;
+	private final Identifiers identifiers;
 	boolean rawStringsFound;
 
-	public Scanner(String text) {
-		this.text = text;
+	public Scanner(TokenBuffer result) {
+		this.result = result;
+		this.identifiers = result.getIdentifierTable();
+		this.text = result.getSource();
+		this.length = text.limit();
 		this.nextPos = 0;
 	}
 
-	public static boolean scan(String text, List<Symbol> meaningfulSymbols, List<Symbol> allSymbols) {
-		Scanner s = new Scanner(text);
+	/**
+	 * Map a source file into memory and trim it like {@link String#trim()}.
+	 * Sources are ISO-8859-1, so every byte is exactly one character.
+	 */
+	public static ByteBuffer mapSource(File file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return trim(ch.map(MapMode.READ_ONLY, 0, ch.size()));
+		}
+	}
+
+	public static ByteBuffer trim(ByteBuffer text) {
+		int start = 0, end = text.limit();
+		while (start < end && (text.get(start) & 0xFF) <= ' ')
+			start++;
+		while (end > start && (text.get(end - 1) & 0xFF) <= ' ')
+			end--;
+		ByteBuffer result = text.duplicate();
+		((Buffer) result).limit(end);
+		((Buffer) result).position(start);
+		return result.slice();
+	}
+
+	/**
+	 * Return a shared instance of the text of the given token, or
+	 * <code>null</code> if the text has to be decoded from the source.
+	 */
+	public static String getCanonicalText(SymbolType type, ByteBuffer source, int start, int length) {
+		String text = canonicalTexts[type.ordinal()];
+		if (text == null && type == SymbolType.SKIP_WHITESPACE && length < spaces.length) {
+			for (int i = 0; i < length; i++) {
+				if (source.get(start + i) != ' ')
+					return null;
+			}
+			text = spaces[length];
+		}
+		return text;
+	}
+
+	public static boolean scan(TokenBuffer tokens) {
+		Scanner s = new Scanner(tokens);
 		s.scan();
-		List<Symbol> tmp = s.result;
-		allSymbols.addAll(tmp);
-		tmp.removeIf(sy -> sy.hasTypeOneOf(SymbolType.SKIP_COMMENT, SymbolType.SKIP_LINEBREAK, SymbolType.SKIP_WHITESPACE));
-		meaningfulSymbols.addAll(tmp);
+		tokens.trimToSize();
 		return s.rawStringsFound;
 	}
 
 	private char next() {
-		return text.charAt(nextPos);
+		return (char) (text.get(nextPos) & 0xFF);
 	}
 
-	private Symbol scanIdentifier() {
-		int start = nextPos;
-		while (nextPos < text.length()) {
+	private char charAt(int pos) {
+		return (char) (text.get(pos) & 0xFF);
+	}
+
+	private void scanIdentifier() {
+		int start = nextPos, hash = 0;
+		boolean upperCase = true;
+		while (nextPos < length) {
 			char ch = next();
-			if (ch >= 'A' && ch <= 'Z' || ch >= 'a' && ch <= 'z' || ch >= '0' && ch <= '9') {
-				nextPos++;
+			if (ch >= 'A' && ch <= 'Z') {
+				hash = 31 * hash + ch;
+			} else if (ch >= 'a' && ch <= 'z' || ch >= '0' && ch <= '9') {
+				upperCase = false;
 			} else {
 				break;
 			}
+			nextPos++;
 		}
-		String symbolText = text.substring(start, nextPos);
-		SymbolType type = symbolText.matches("[A-Z]{2,9}") ? Symbol.KEYWORD_MAP.get(symbolText) : null;
-		if (type == null) {
-			type = SymbolType.IDENTIFIER;
+		int len = nextPos - start;
+		SymbolType type = SymbolType.IDENTIFIER;
+		if (upperCase && len >= minKeywordLength && len <= maxKeywordLength) {
+			int slot = (hash * keywordMultiplier) >>> keywordShift;
+			byte[] keyword = keywordTexts[slot];
+			if (keyword != null && keyword.length == len) {
+				type = keywordTypes[slot];
+				for (int i = 0; i < len; i++) {
+					if (text.get(start + i) != keyword[i]) {
+						type = SymbolType.IDENTIFIER;
+						break;
+					}
+				}
+			}
 		}
-		return new Symbol(type, symbolText);
+		if (type == SymbolType.IDENTIFIER)
+			result.addIdentifier(start, len, identifiers.intern(text, start, len));
+		else
+			addSymbol(type, start);
 	}
 
-	private Symbol makeSymbol(SymbolType type, int start) {
-		return new Symbol(type, text.substring(start, nextPos));
+	private void addSymbol(SymbolType type, int start) {
+		result.add(type, start, nextPos - start);
 	}
 
-	private Symbol scanString() { // both hex and normal ones
+	private void scanString() { // both hex and normal ones
 		int start = nextPos;
-		int end = text.indexOf(text.charAt(start), nextPos + 1);
-		if (end == -1)
-			throw new RuntimeException("unterminated string");
-		nextPos = end + 1;
-		return makeSymbol(SymbolType.CONST, start);
+		char delimiter = next();
+		do {
+			nextPos++;
+			if (nextPos == length)
+				throw new RuntimeException("unterminated string");
+		} while (next() != delimiter);
+		nextPos++;
+		addSymbol(SymbolType.CONST, start);
 	}
 
-	private Symbol scanNumber() {
+	private void scanNumber() {
 		int start = nextPos;
 		while (next() >= '0' && next() <= '9' || next() >= 'A' && next() <= 'F') {
 			nextPos++;
 		}
 		if (next() == 'H' || next() == 'R' || next() == 'X') {
 			nextPos++;
-		} else if (next() == '.' && !text.startsWith("..", nextPos)) {
+		} else if (next() == '.' && !(nextPos + 1 < length && charAt(nextPos + 1) == '.')) {
 			nextPos++;
 			while (next() >= '0' && next() <= '9')
 				nextPos++;
@@ -116,21 +255,13 @@ public class Scanner {
 					nextPos++;
 			}
 		}
-		return makeSymbol(SymbolType.CONST, start);
+		addSymbol(SymbolType.CONST, start);
 	}
 
-	private void scanComment(List<Symbol> result) { // nextPos points to * of (*
-		int start = nextPos - 1;
+	private void scanComment() { // nextPos points to * of (*
+		commentLineStart = nextPos - 1;
 		skipComment();
-		String txt = text.substring(start, nextPos);
-		int pos = txt.indexOf('\n');
-		while (pos != -1) {
-			result.add(new Symbol(SymbolType.SKIP_COMMENT, txt.substring(0, pos)));
-			result.add(new Symbol(SymbolType.SKIP_LINEBREAK, "\n"));
-			txt = txt.substring(pos + 1);
-			pos = txt.indexOf('\n');
-		}
-		result.add(new Symbol(SymbolType.SKIP_COMMENT, txt));
+		addSymbol(SymbolType.SKIP_COMMENT, commentLineStart);
 	}
 
 	private void skipComment() {
@@ -142,51 +273,55 @@ public class Scanner {
 					if (next() == '*')
 						skipComment();
 				} else {
+					if (next() == '\n') {
+						// emit the comment line by line, so that each source line stays separate
+						addSymbol(SymbolType.SKIP_COMMENT, commentLineStart);
+						result.add(SymbolType.SKIP_LINEBREAK, nextPos, 1);
+						commentLineStart = nextPos + 1;
+					}
 					nextPos++;
 				}
 			}
-			while (nextPos < text.length() && next() == '*')
+			while (nextPos < length && next() == '*')
 				nextPos++;
 		} while (next() != ')');
 		nextPos++;
 	}
 
 	private void scan() {
-		while (nextPos < text.length()) {
+		while (nextPos < length) {
 			char ch = next();
 			if (ch == '\n') {
-				result.add(new Symbol(SymbolType.SKIP_LINEBREAK, "\n"));
 				nextPos++;
+				addSymbol(SymbolType.SKIP_LINEBREAK, nextPos - 1);
 			} else if (ch <= ' ') {
-				result.add(new Symbol(SymbolType.SKIP_WHITESPACE, text.substring(nextPos, nextPos + 1)));
-				nextPos++;
+				int start = nextPos;
+				do {
+					nextPos++;
+				} while (nextPos < length && next() <= ' ' && next() != '\n');
+				addSymbol(SymbolType.SKIP_WHITESPACE, start);
 			} else if (ch >= '0' && ch <= '9') {
-				result.add(scanNumber());
+				scanNumber();
 			} else if (ch >= 'A' && ch <= 'Z' || ch >= 'a' && ch <= 'z') {
-				result.add(scanIdentifier());
+				scanIdentifier();
 			} else if (ch == '"' || ch == '$') {
 				if (ch == '$')
 					rawStringsFound = true;
-				result.add(scanString());
+				scanString();
 			} else if (ch == '(') {
 				nextPos++;
 				if (next() == '*') {
-					scanComment(result);
+					scanComment();
 				} else {
-					result.add(new Symbol(SymbolType.OP_LPAREN, "("));
+					addSymbol(SymbolType.OP_LPAREN, nextPos - 1);
 				}
 			} else if (singleSymbols[ch] != null) {
 				nextPos++;
-				if (nextPos < text.length() && (ch == '.' || ch == ':' || ch == '>' || ch == '<')) {
-					SymbolType ds = doubleSymbols.get(text.substring(nextPos - 1, nextPos + 1));
-					if (ds != null) {
-						nextPos++;
-						result.add(makeSymbol(ds, nextPos - 2));
-					} else {
-						result.add(new Symbol(singleSymbols[ch], "" + ch));
-					}
+				if (doubleSymbols[ch] != null && nextPos < length && next() == doubleSymbolSecondChars[ch]) {
+					nextPos++;
+					addSymbol(doubleSymbols[ch], nextPos - 2);
 				} else {
-					result.add(new Symbol(singleSymbols[ch], "" + ch));
+					addSymbol(singleSymbols[ch], nextPos - 1);
 				}
 			} else {
 				throw new RuntimeException("invalid char " + ch);
@@ -1,26 +1,48 @@
 package oberonxref;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 public class Scope {
+	private final Identifiers identifiers;
 	private Scope parent;
 	private final String linkPrefix;
 	private Scope publicScope = null;
-	private final Map<String, Type> identifierTypes = new HashMap<>();
-	private final Map<String, Scope> identifierScopes = new HashMap<>();
-	private final Map<String, Scope> unresolvedPointerTypes = new HashMap<>();
+	private final IntMap<Entry> entries = new IntMap<>();
+	private final IntMap<Scope> unresolvedPointerTypes = new IntMap<>();
 
-	public Scope(Scope parent, String linkPrefix, Scope prefixScope) {
+	public Scope(Identifiers identifiers, Scope parent, String linkPrefix, Scope prefixScope) {
+		this.identifiers = identifiers;
 		this.parent = parent;
 		this.linkPrefix = (prefixScope != null ? prefixScope.linkPrefix : "") + linkPrefix;
 	}
 
+	public Identifiers getIdentifiers() {
+		return identifiers;
+	}
+
 	public Scope getParent() {
 		return parent;
 	}
 
+	void setParent(Scope parent) {
+		this.parent = parent;
+	}
+
+	String getLinkPrefix() {
+		return linkPrefix;
+	}
+
+	/**
+	 * Return the ids of all identifiers defined directly in this scope.
+	 */
+	int[] getLocalIdentifiers() {
+		return entries.keys();
+	}
+
+	Entry getLocalEntry(int ident) {
+		return entries.get(ident);
+	}
+
 	public Scope getPublicScope() {
 		return publicScope;
 	}
@@ -29,68 +51,99 @@ public class Scope {
 		this.publicScope = publicScope;
 	}
 
-	public void putIdentifier(String ident, Type type, Scope scope) {
-		if (identifierTypes.containsKey(ident))
-			throw new IllegalArgumentException("Duplicate identifier " + ident);
-		identifierTypes.put(ident, type);
-		if (scope != null)
-			identifierScopes.put(ident, scope);
+	public void putIdentifier(int ident, Type type, Scope scope) {
+		if (entries.containsKey(ident))
+			throw new IllegalArgumentException("Duplicate identifier " + identifiers.getName(ident));
+		entries.put(ident, new Entry(type, scope, linkPrefix + identifiers.getName(ident)));
 		if (type == Type.TYPE && unresolvedPointerTypes.containsKey(ident)) {
 			Scope pointerScope = unresolvedPointerTypes.remove(ident);
 			pointerScope.parent = scope;
-			pointerScope.identifierScopes.put("^", scope);
+			pointerScope.entries.get(Identifiers.DEREFERENCE).scope = scope;
 		}
 	}
 
-	public Scope makePointerScope(String pointerOf) {
-		Scope pointerScope = new Scope(null, pointerOf + ".", this);
-		pointerScope.putIdentifier("^", Type.VARIABLE, pointerScope);
-		if (identifierTypes.containsKey(pointerOf)) {
-			Scope identScope = getIdentifierScope(pointerOf);
-			pointerScope.parent = identScope;
-			pointerScope.identifierScopes.put("^", identScope);
+	public Scope makePointerScope(int pointerOf) {
+		Scope pointerScope = new Scope(identifiers, null, identifiers.getName(pointerOf) + ".", this);
+		pointerScope.putIdentifier(Identifiers.DEREFERENCE, Type.VARIABLE, pointerScope);
+		Entry entry = entries.get(pointerOf);
+		if (entry != null) {
+			pointerScope.parent = entry.scope;
+			pointerScope.entries.get(Identifiers.DEREFERENCE).scope = entry.scope;
 		} else {
 			unresolvedPointerTypes.put(pointerOf, pointerScope);
 		}
 		return pointerScope;
 	}
 
-	public boolean isIdentifierDefined(String ident) {
-		return identifierTypes.containsKey(ident) || (parent != null && parent.isIdentifierDefined(ident));
+	/**
+	 * Find the entry of an identifier in this scope or its parents, or return
+	 * <code>null</code> if it is not defined.
+	 */
+	public Entry findEntry(int ident) {
+		for (Scope s = this; s != null; s = s.parent) {
+			Entry entry = s.entries.get(ident);
+			if (entry != null)
+				return entry;
+		}
+		return null;
+	}
+
+	public Entry getEntry(int ident) {
+		Entry entry = findEntry(ident);
+		if (entry == null)
+			throw new NoSuchElementException(identifiers.getName(ident));
+		return entry;
 	}
 
-	public Type getIdentifierType(String ident) {
-		if (identifierTypes.containsKey(ident))
-			return identifierTypes.get(ident);
-		if (parent != null)
-			return parent.getIdentifierType(ident);
-		throw new NoSuchElementException(ident);
+	public boolean isIdentifierDefined(int ident) {
+		return findEntry(ident) != null;
 	}
 
-	public Scope getIdentifierScope(String ident) {
-		if (identifierTypes.containsKey(ident))
-			return identifierScopes.get(ident);
-		if (parent != null)
-			return parent.getIdentifierScope(ident);
-		throw new NoSuchElementException(ident);
+	public Type getIdentifierType(int ident) {
+		return getEntry(ident).type;
 	}
 
-	public String getIdentifierLink(String ident) {
-		String link = getIdentifierLink0(ident);
-		if (link.contains("@@"))
-			throw new RuntimeException("Invalid link: " + link);
-		return link;
+	public Scope getIdentifierScope(int ident) {
+		return getEntry(ident).scope;
 	}
 
-	private String getIdentifierLink0(String ident) {
-		if (identifierTypes.containsKey(ident))
-			return linkPrefix + ident;
-		if (parent != null)
-			return parent.getIdentifierLink(ident);
-		throw new NoSuchElementException(ident);
+	public String getIdentifierLink(int ident) {
+		return getEntry(ident).getLink();
 	}
 
 	public static enum Type {
 		CONSTANT, VARIABLE, TYPE, IMPORTED_MODULE, PROCEDURE
 	}
+
+	/**
+	 * Resolved definition of an identifier: its type, its scope (if any) and
+	 * its link, computed once when the identifier is defined.
+	 */
+	public static class Entry {
+		private final Type type;
+		private Scope scope;
+		private final String link;
+		private final boolean validLink;
+
+		private Entry(Type type, Scope scope, String link) {
+			this.type = type;
+			this.scope = scope;
+			this.link = link;
+			this.validLink = !link.contains("@@");
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public Scope getScope() {
+			return scope;
+		}
+
+		public String getLink() {
+			if (!validLink)
+				throw new RuntimeException("Invalid link: " + link);
+			return link;
+		}
+	}
 }
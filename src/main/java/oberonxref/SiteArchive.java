@@ -0,0 +1,102 @@
+package oberonxref;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * ZIP archive that receives all pages of a site, instead of one file per
+ * page. Pages are buffered in memory while they are rendered and appended
+ * as a whole when closed, so several threads can write pages at the same
+ * time. Stored (uncompressed) entries can be read without inflating, which
+ * makes serving them cheaper.
+ */
+public class SiteArchive implements Closeable {
+
+	private final ZipOutputStream zip;
+	private final boolean stored;
+
+	public SiteArchive(File file, boolean stored) throws IOException {
+		this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20), StandardCharsets.UTF_8);
+		this.stored = stored;
+	}
+
+	public static boolean isArchive(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".zip") || name.endsWith(".jar");
+	}
+
+	/**
+	 * Open a channel for a new entry, which is added when the channel is
+	 * closed.
+	 */
+	public WritableByteChannel openEntry(String name) {
+		return new EntryChannel(name);
+	}
+
+	private synchronized void addEntry(String name, byte[] data, int length) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		if (stored) {
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(length);
+			entry.setCompressedSize(length);
+			entry.setCrc(crc.getValue());
+		}
+		zip.putNextEntry(entry);
+		zip.write(data, 0, length);
+		zip.closeEntry();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		zip.close();
+	}
+
+	private class EntryChannel extends ByteArrayOutputStream implements WritableByteChannel {
+		private final String name;
+		private boolean open = true;
+
+		private EntryChannel(String name) {
+			super(65536);
+			this.name = name;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			if (src.hasArray()) {
+				write(src.array(), src.arrayOffset() + src.position(), length);
+				((Buffer) src).position(src.position() + length);
+			} else {
+				while (src.hasRemaining())
+					write(src.get());
+			}
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (open) {
+				open = false;
+				addEntry(name, buf, count);
+			}
+		}
+	}
+}
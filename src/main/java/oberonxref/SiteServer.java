@@ -0,0 +1,59 @@
+package oberonxref;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tiny local HTTP server for a site written into an archive.
+ */
+public class SiteServer {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].matches("[0-9]+"))) {
+			System.out.println("Usage: java -cp OberonXref.jar oberonxref.SiteServer <archive> [<port>]");
+			return;
+		}
+		ZipFile archive = new ZipFile(new File(args[0]));
+		int port = args.length == 2 ? Integer.parseInt(args[1]) : 8080;
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/", exchange -> {
+			try {
+				servePage(archive, exchange);
+			} finally {
+				exchange.close();
+			}
+		});
+		server.start();
+		System.out.println("Serving " + args[0] + " at http://localhost:" + server.getAddress().getPort() + "/");
+	}
+
+	private static void servePage(ZipFile archive, HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath().substring(1);
+		if (path.isEmpty())
+			path = "index.html";
+		ZipEntry entry = path.contains("..") ? null : archive.getEntry(path);
+		if (entry == null || entry.isDirectory() || !exchange.getRequestMethod().equals("GET")) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		String contentType = "application/octet-stream";
+		if (path.endsWith(".html"))
+			contentType = "text/html; charset=UTF-8";
+		else if (path.endsWith(".css"))
+			contentType = "text/css; charset=UTF-8";
+		else if (path.endsWith(".js"))
+			contentType = "text/javascript; charset=UTF-8";
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(200, entry.getSize() == -1 ? 0 : entry.getSize());
+		try (InputStream in = archive.getInputStream(entry); OutputStream out = exchange.getResponseBody()) {
+			HTMLBuilder.copyStream(in, out);
+		}
+	}
+}
@@ -1,49 +1,13 @@
 package oberonxref;
 
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Symbol {
-	private final SymbolType type;
-	private final String text;
-	private String link = null;
 
-	public Symbol(SymbolType type, String text) {
-		this.type = type;
-		this.text = text;
-	}
-
-	public SymbolType getType() {
-		return type;
-	}
-
-	public String getText() {
-		return text;
-	}
-
-	public String getLink() {
-		return link;
-	}
-
-	public void setLink(String link) {
-		this.link = link;
-	}
-	
-
-	public String getCSS() {
-		return type.category.css;
-	}
-	
-	@Override
-	public String toString() {
+	public static String describe(SymbolType type, String text) {
 		return "Symbol "+text+"["+type+"]";
 	}
-	
-
-	public boolean hasTypeOneOf(SymbolType... types) {
-		return Arrays.asList(types).contains(type);
-	}
 
 	public static Map<String,SymbolType> KEYWORD_MAP = new HashMap<>();
 	
@@ -134,17 +98,21 @@ public class Symbol {
 
 	public static enum SymbolCategory {
 
-		KEYWORD("color: #f0f;"),
-		CONSTANT("color: #666;"),
-		COMMENT("color: #0a0;"),
-		IDENTIFIER("color: #00f;"),
-		OPERATOR(""),
-		WHITESPACE("");
+		KEYWORD("color: #f0f;", "k"),
+		CONSTANT("color: #666;", "c"),
+		COMMENT("color: #0a0;", "m"),
+		IDENTIFIER("color: #00f;", "i"),
+		OPERATOR("", ""),
+		WHITESPACE("", "");
 
 		public final String css;
 
-		private SymbolCategory(String css) {
+		/** Class in style.css with the same style, used in compact output */
+		public final String cssClass;
+
+		private SymbolCategory(String css, String cssClass) {
 			this.css = css;
+			this.cssClass = cssClass;
 		}
 	}
 }
@@ -0,0 +1,257 @@
+package oberonxref;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import oberonxref.Scope.Type;
+
+/**
+ * Directory of symbol files, which store the exported interface of a module
+ * (all scopes reachable from its public scope), similar to the .smb files of
+ * the Oberon compiler. Scopes owned by other modules are stored as references
+ * to their module and index. Every file is keyed by a hash of the module
+ * source and the interface fingerprints of all its imports, so it is only
+ * used when neither changed; changes of an import that do not affect its
+ * interface do not invalidate it.
+ */
+public class SymbolFileCache {
+
+	private static final int MAGIC = 0x4F585346, VERSION = 2;
+	private static final Type[] TYPES = Type.values();
+
+	private final File directory;
+	private final Map<String, byte[]> keys = new HashMap<>(), fingerprints = new HashMap<>();
+	private final Map<Scope, String> owners = new IdentityHashMap<>();
+	private final Map<Scope, Integer> indices = new IdentityHashMap<>();
+	private final Map<String, List<Scope>> moduleScopes = new HashMap<>();
+
+	public SymbolFileCache(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	static String toHex(byte[] hash) {
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compute the key of a module. The interfaces of all imports have to be
+	 * known already.
+	 */
+	public synchronized void computeKey(String module, ByteBuffer source, List<String> imports) {
+		MessageDigest md = newDigest();
+		md.update(source.duplicate());
+		for (String imp : imports) {
+			byte[] fingerprint = fingerprints.get(imp);
+			if (fingerprint == null)
+				throw new IllegalStateException("No interface for module " + imp + " imported by " + module);
+			md.update(imp.getBytes(StandardCharsets.ISO_8859_1));
+			md.update(fingerprint);
+		}
+		keys.put(module, md.digest());
+	}
+
+	/**
+	 * Return the key of a module as hex string, or <code>null</code> if it has
+	 * not been computed.
+	 */
+	public synchronized String getKey(String module) {
+		byte[] key = keys.get(module);
+		return key == null ? null : toHex(key);
+	}
+
+	/**
+	 * Register a module that is always parsed (like SYSTEM), so that other
+	 * symbol files can refer to its scopes.
+	 */
+	public synchronized void register(String module, ByteBuffer source, Scope publicScope) {
+		computeKey(module, source, Collections.emptyList());
+		try {
+			fingerprints.put(module, newDigest().digest(serialize(module, number(module, publicScope))));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private List<Scope> number(String module, Scope root) {
+		List<Scope> scopes = new ArrayList<>();
+		addScope(module, root, scopes);
+		for (int i = 0; i < scopes.size(); i++) {
+			Scope scope = scopes.get(i);
+			addScope(module, scope.getParent(), scopes);
+			addScope(module, scope.getPublicScope(), scopes);
+			for (int ident : sortedIdentifiers(scope)) {
+				addScope(module, scope.getLocalEntry(ident).getScope(), scopes);
+			}
+		}
+		moduleScopes.put(module, scopes);
+		return scopes;
+	}
+
+	private void addScope(String module, Scope scope, List<Scope> scopes) {
+		if (scope != null && !owners.containsKey(scope)) {
+			owners.put(scope, module);
+			indices.put(scope, scopes.size());
+			scopes.add(scope);
+		}
+	}
+
+	private static int[] sortedIdentifiers(Scope scope) {
+		Integer[] idents = Arrays.stream(scope.getLocalIdentifiers()).boxed().toArray(Integer[]::new);
+		Identifiers identifiers = scope.getIdentifiers();
+		Arrays.sort(idents, (a, b) -> identifiers.getName(a).compareTo(identifiers.getName(b)));
+		return Arrays.stream(idents).mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Write the symbol file of a freshly parsed module.
+	 */
+	public void store(String module, Scope publicScope) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			synchronized (this) {
+				byte[] body = serialize(module, number(module, publicScope));
+				byte[] fingerprint = newDigest().digest(body);
+				fingerprints.put(module, fingerprint);
+				DataOutputStream out = new DataOutputStream(baos);
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.write(keys.get(module));
+				out.write(fingerprint);
+				out.write(body);
+				out.flush();
+			}
+			File file = new File(directory, module + ".smb"), tempFile = new File(directory, module + ".smb.tmp");
+			try (OutputStream out = new FileOutputStream(tempFile)) {
+				baos.writeTo(out);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			throw new RuntimeException("Cannot write symbol file of " + module, ex);
+		}
+	}
+
+	private byte[] serialize(String module, List<Scope> scopes) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(scopes.size());
+		for (Scope scope : scopes) {
+			out.writeUTF(scope.getLinkPrefix());
+		}
+		for (Scope scope : scopes) {
+			writeRef(out, module, scope.getParent());
+			writeRef(out, module, scope.getPublicScope());
+			int[] idents = sortedIdentifiers(scope);
+			out.writeInt(idents.length);
+			for (int ident : idents) {
+				Scope.Entry entry = scope.getLocalEntry(ident);
+				out.writeUTF(scope.getIdentifiers().getName(ident));
+				out.writeByte(entry.getType().ordinal());
+				writeRef(out, module, entry.getScope());
+			}
+		}
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	private void writeRef(DataOutputStream out, String module, Scope scope) throws IOException {
+		if (scope == null) {
+			out.writeByte(0);
+		} else if (owners.get(scope).equals(module)) {
+			out.writeByte(1);
+			out.writeInt(indices.get(scope));
+		} else {
+			out.writeByte(2);
+			out.writeUTF(owners.get(scope));
+			out.writeInt(indices.get(scope));
+		}
+	}
+
+	/**
+	 * Load the public scope of a module from its symbol file, or return
+	 * <code>null</code> if there is no up to date symbol file.
+	 */
+	public synchronized Scope load(String module, Identifiers identifiers) {
+		File file = new File(directory, module + ".smb");
+		if (!file.exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] key = new byte[32], fingerprint = new byte[32];
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			in.readFully(key);
+			if (!Arrays.equals(key, keys.get(module)))
+				return null;
+			in.readFully(fingerprint);
+			Scope[] scopes = new Scope[in.readInt()];
+			for (int i = 0; i < scopes.length; i++) {
+				scopes[i] = new Scope(identifiers, null, in.readUTF(), null);
+			}
+			for (Scope scope : scopes) {
+				scope.setParent(readRef(in, scopes));
+				scope.setPublicScope(readRef(in, scopes));
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					int ident = identifiers.intern(in.readUTF());
+					Type type = TYPES[in.readByte()];
+					scope.putIdentifier(ident, type, readRef(in, scopes));
+				}
+			}
+			for (int i = 0; i < scopes.length; i++) {
+				owners.put(scopes[i], module);
+				indices.put(scopes[i], i);
+			}
+			moduleScopes.put(module, Arrays.asList(scopes));
+			fingerprints.put(module, fingerprint);
+			return scopes[0];
+		} catch (IOException | RuntimeException ex) {
+			// treat unreadable files like outdated ones
+			return null;
+		}
+	}
+
+	private Scope readRef(DataInputStream in, Scope[] scopes) throws IOException {
+		switch (in.readByte()) {
+		case 0:
+			return null;
+		case 1:
+			return scopes[in.readInt()];
+		case 2:
+			return moduleScopes.get(in.readUTF()).get(in.readInt());
+		default:
+			throw new IOException("Invalid scope reference");
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package oberonxref;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import oberonxref.Symbol.SymbolType;
+
+/**
+ * Compact storage of all tokens of one module, as parallel arrays of symbol
+ * type, start offset, length, identifier id and link id. The token text is not
+ * stored but read from the ISO-8859-1 source buffer or the identifier table on
+ * demand.
+ *
+ * Tokens are addressed by their index; the meaningful tokens (everything
+ * except comments and whitespace) are additionally indexed by a separate
+ * array so that the parser can skip the rest.
+ */
+public class TokenBuffer {
+
+	private static final SymbolType[] TYPES = SymbolType.values();
+
+	private final ByteBuffer source;
+	private final Identifiers identifierTable;
+	private byte[] types;
+	private int[] starts, lengths, identifiers, links;
+	private int size = 0;
+	private int[] meaningfulTokens;
+	private int meaningfulSize = 0;
+	private int[] procedureNames = new int[0], procedureEnds = new int[0];
+	private int procedureCount = 0;
+	private final List<String> linkTexts = new ArrayList<>();
+	private final Map<String, Integer> linkIds = new HashMap<>();
+
+	public TokenBuffer(ByteBuffer source, Identifiers identifierTable) {
+		this.source = source;
+		this.identifierTable = identifierTable;
+		int capacity = Math.max(16, source.limit() / 4);
+		types = new byte[capacity];
+		starts = new int[capacity];
+		lengths = new int[capacity];
+		identifiers = new int[capacity];
+		links = new int[capacity];
+		meaningfulTokens = new int[capacity / 2];
+	}
+
+	public ByteBuffer getSource() {
+		return source;
+	}
+
+	public Identifiers getIdentifierTable() {
+		return identifierTable;
+	}
+
+	public void add(SymbolType type, int start, int length) {
+		add(type, start, length, 0);
+	}
+
+	public void addIdentifier(int start, int length, int identifier) {
+		add(SymbolType.IDENTIFIER, start, length, identifier);
+	}
+
+	private void add(SymbolType type, int start, int length, int identifier) {
+		if (size == types.length) {
+			int capacity = Math.max(16, size * 2);
+			types = Arrays.copyOf(types, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			identifiers = Arrays.copyOf(identifiers, capacity);
+			links = Arrays.copyOf(links, capacity);
+		}
+		types[size] = (byte) type.ordinal();
+		starts[size] = start;
+		lengths[size] = length;
+		identifiers[size] = identifier;
+		if (type.category != Symbol.SymbolCategory.COMMENT && type.category != Symbol.SymbolCategory.WHITESPACE) {
+			if (meaningfulSize == meaningfulTokens.length)
+				meaningfulTokens = Arrays.copyOf(meaningfulTokens, Math.max(16, meaningfulSize * 2));
+			meaningfulTokens[meaningfulSize++] = size;
+		}
+		size++;
+	}
+
+	/**
+	 * Release the unused capacity after the last token has been added.
+	 */
+	public void trimToSize() {
+		types = Arrays.copyOf(types, size);
+		starts = Arrays.copyOf(starts, size);
+		lengths = Arrays.copyOf(lengths, size);
+		identifiers = Arrays.copyOf(identifiers, size);
+		links = Arrays.copyOf(links, size);
+		meaningfulTokens = Arrays.copyOf(meaningfulTokens, meaningfulSize);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getMeaningfulSize() {
+		return meaningfulSize;
+	}
+
+	public int getMeaningfulToken(int index) {
+		if (index >= meaningfulSize)
+			throw new IndexOutOfBoundsException("Meaningful token " + index);
+		return meaningfulTokens[index];
+	}
+
+	public SymbolType getType(int token) {
+		return TYPES[types[token]];
+	}
+
+	public boolean hasTypeOneOf(int token, SymbolType... types) {
+		SymbolType type = getType(token);
+		for (SymbolType t : types) {
+			if (t == type)
+				return true;
+		}
+		return false;
+	}
+
+	public int getStart(int token) {
+		return starts[token];
+	}
+
+	public int getLength(int token) {
+		return lengths[token];
+	}
+
+	/**
+	 * Return the interned id of an identifier token, see {@link Identifiers}.
+	 */
+	public int getIdentifier(int token) {
+		int id = identifiers[token];
+		if (id == 0)
+			throw new IllegalArgumentException("Not an identifier: " + describe(token));
+		return id;
+	}
+
+	public String getText(int token) {
+		if (identifiers[token] != 0)
+			return identifierTable.getName(identifiers[token]);
+		int start = starts[token], length = lengths[token];
+		String canonicalText = Scanner.getCanonicalText(getType(token), source, start, length);
+		if (canonicalText != null)
+			return canonicalText;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (source.get(start + i) & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	public String getCSS(int token) {
+		return getType(token).category.css;
+	}
+
+	public String getCSSClass(int token) {
+		return getType(token).category.cssClass;
+	}
+
+	public String getLink(int token) {
+		int id = links[token];
+		return id == 0 ? null : linkTexts.get(id - 1);
+	}
+
+	public void setLink(int token, String link) {
+		Integer id = linkIds.get(link);
+		if (id == null) {
+			linkTexts.add(link);
+			id = linkTexts.size();
+			linkIds.put(link, id);
+		}
+		links[token] = id;
+	}
+
+	/**
+	 * Record a procedure declaration, in source order, by the token of its
+	 * name.
+	 *
+	 * @return the number of the procedure
+	 */
+	public int addProcedure(int nameToken) {
+		if (procedureCount == procedureNames.length) {
+			procedureNames = Arrays.copyOf(procedureNames, Math.max(8, procedureCount * 2));
+			procedureEnds = Arrays.copyOf(procedureEnds, procedureNames.length);
+		}
+		procedureNames[procedureCount] = nameToken;
+		procedureEnds[procedureCount] = nameToken;
+		return procedureCount++;
+	}
+
+	/**
+	 * Set the token of the name after the <code>END</code> of a procedure.
+	 */
+	public void setProcedureEnd(int procedure, int endToken) {
+		procedureEnds[procedure] = endToken;
+	}
+
+	public int getProcedureCount() {
+		return procedureCount;
+	}
+
+	public int getProcedureName(int procedure) {
+		return procedureNames[procedure];
+	}
+
+	public int getProcedureEnd(int procedure) {
+		return procedureEnds[procedure];
+	}
+
+	public String describe(int token) {
+		return Symbol.describe(getType(token), getText(token));
+	}
+}
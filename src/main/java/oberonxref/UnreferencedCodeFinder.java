@@ -1,9 +1,6 @@
 package oberonxref;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.InputStream;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -12,6 +9,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import oberonxref.Symbol.SymbolType;
 
@@ -21,98 +19,57 @@ public class UnreferencedCodeFinder {
 			System.out.println("Usage: java -cp OberonXref.jar oberonxref.UnreferencedCodeFinder <indir>");
 			return;
 		}
-		List<String> modQueue = new ArrayList<>(), nextModQueue = new ArrayList<>();
-		Map<String, List<Symbol>> parsedModules = new HashMap<>();
+		Identifiers identifiers = new Identifiers();
+		Map<String, TokenBuffer> parsedModules = new HashMap<>();
 		Map<String, List<String>> importedModules = new HashMap<>();
 		System.out.println("=== Scanning Modules ===");
 		for (File f : new File(args[0]).listFiles()) {
 			if (f.getName().endsWith(".Mod.txt")) {
-				String code = new String(Files.readAllBytes(f.toPath()), "ISO-8859-1").trim();
-				List<Symbol> syms = new ArrayList<>();
-				Scanner.scan(code, syms, new ArrayList<>());
+				TokenBuffer syms = new TokenBuffer(Scanner.mapSource(f), identifiers);
+				Scanner.scan(syms);
 				List<String> imports = new ArrayList<>();
 				String modname = Parser.findImportedModules(syms, imports);
 				importedModules.put(modname, imports);
-				modQueue.add(modname);
 				parsedModules.put(modname, syms);
 			}
 		}
 		System.out.println("=== Parsing Modules ===");
-		Map<String, Scope> publicScopes = new HashMap<>();
+		Map<String, Scope> publicScopes = new ConcurrentHashMap<>();
 		for (String builtin : Arrays.asList("BUILTINS", "SYSTEM")) {
-			try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					InputStream in = Scanner.class.getResourceAsStream("/" + builtin + ".Mod.txt")) {
-				HTMLBuilder.copyStream(in, baos);
-				String code = new String(baos.toByteArray(), "ISO-8859-1").trim();
-				List<Symbol> syms = new ArrayList<>();
-				Scanner.scan(code, syms, new ArrayList<>());
-				new Parser(syms, publicScopes).parseModule();
-				parsedModules.put(builtin, syms);
-			}
-		}
-		Map<String, List<String>> filesToCheck = new HashMap<>();
-		while (!modQueue.isEmpty()) {
-			for (String mod : modQueue) {
-				String lastUnresolvedImport = null;
-				for (String dep : importedModules.get(mod))
-					if (!publicScopes.containsKey(dep))
-						lastUnresolvedImport = dep;
-				if (lastUnresolvedImport == null) {
-					List<Symbol> symbols = parsedModules.get(mod);
-					Parser p = new Parser(symbols, publicScopes);
-					try {
-						p.parseModule();
-						List<String> nextMods = filesToCheck.remove(mod);
-						if (nextMods != null)
-							nextModQueue.addAll(nextMods);
-					} catch (RuntimeException ex) {
-						// find approximate error position
-						int nextSym = p.getNextSym();
-						StringBuilder symTexts = new StringBuilder();
-						for (int i = Math.max(0, nextSym - 25); i < Math.min(symbols.size(), nextSym + 25); i++) {
-							if (i == nextSym)
-								symTexts.append("\nSymbols after:\n");
-							symTexts.append(symbols.get(i).getText() + " ");
-						}
-						throw new RuntimeException("While parsing " + mod + "\nSymbols before:\n" + symTexts.toString(), ex);
-					}
-				} else {
-					filesToCheck.computeIfAbsent(lastUnresolvedImport, m -> new ArrayList<>()).add(mod);
-				}
-			}
-			modQueue = nextModQueue;
-			nextModQueue = new ArrayList<>();
+			parsedModules.put(builtin, ParallelParser.parseBuiltin(builtin, publicScopes, identifiers));
 		}
-		if (!filesToCheck.isEmpty())
-			throw new RuntimeException("Unsatisfiable module dependencies: " + filesToCheck);
+		new ParallelParser(parsedModules, new ModuleGraph(importedModules, publicScopes.keySet()), publicScopes).parseAll(Runtime.getRuntime().availableProcessors(), false);
 		System.out.println("=== Checking inside module ===");
 		Map<String, Set<String>> publicLinkReferences = new HashMap<>();
-		for (Map.Entry<String, List<Symbol>> e : parsedModules.entrySet()) {
+		for (Map.Entry<String, TokenBuffer> e : parsedModules.entrySet()) {
 			boolean lastWasEnd = false;
 			List<String> definedSymbols = new ArrayList<>();
 			Set<String> usedSymbols = new HashSet<>();
-			for (Symbol s : e.getValue()) {
-				if (s.getType().equals(SymbolType.IDENTIFIER)) {
-					if (s.getLink() == null)
-						throw new RuntimeException(e.getKey() + ": No link on " + s);
-				} else if (!s.getType().equals(SymbolType.OP_TIMES) && s.getLink() != null) {
-					throw new RuntimeException(e.getKey() + ": Link on " + s);
+			TokenBuffer tokens = e.getValue();
+			for (int i = 0; i < tokens.getMeaningfulSize(); i++) {
+				int s = tokens.getMeaningfulToken(i);
+				String link = tokens.getLink(s);
+				if (tokens.getType(s).equals(SymbolType.IDENTIFIER)) {
+					if (link == null)
+						throw new RuntimeException(e.getKey() + ": No link on " + tokens.describe(s));
+				} else if (!tokens.getType(s).equals(SymbolType.OP_TIMES) && link != null) {
+					throw new RuntimeException(e.getKey() + ": Link on " + tokens.describe(s));
 				}
-				if (s.getLink() != null) {
-					if (s.getLink().startsWith("#")) {
+				if (link != null) {
+					if (link.startsWith("#")) {
 						if (!lastWasEnd)
-							usedSymbols.add(s.getLink().substring(1));
-					} else if (s.getLink().startsWith("=")) {
-						if (!s.getLink().equals("=MODULE"))
-							definedSymbols.add(s.getLink().substring(1));
-					} else if (s.getLink().startsWith(e.getKey() + "-usage.html#")) {
-						usedSymbols.add(s.getLink().substring((e.getKey() + "-usage.html#").length()));
-						publicLinkReferences.putIfAbsent(s.getLink().replace("-usage.html#", ".html#"), new HashSet<>());
+							usedSymbols.add(link.substring(1));
+					} else if (link.startsWith("=")) {
+						if (!link.equals("=MODULE"))
+							definedSymbols.add(link.substring(1));
+					} else if (link.startsWith(e.getKey() + "-usage.html#")) {
+						usedSymbols.add(link.substring((e.getKey() + "-usage.html#").length()));
+						publicLinkReferences.putIfAbsent(link.replace("-usage.html#", ".html#"), new HashSet<>());
 					} else {
-						publicLinkReferences.computeIfAbsent(s.getLink(), v -> new HashSet<>()).add(e.getKey() + ".html");
+						publicLinkReferences.computeIfAbsent(link, v -> new HashSet<>()).add(e.getKey() + ".html");
 					}
 				}
-				lastWasEnd = s.getType().equals(SymbolType.KEYWORD_END);
+				lastWasEnd = tokens.getType(s).equals(SymbolType.KEYWORD_END);
 			}
 			Collections.sort(definedSymbols);
 			for (String symbol : definedSymbols) {
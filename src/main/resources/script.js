@@ -124,12 +124,45 @@ function toggleasm(elem) {
 	table.classList.add(elem.value);
 }
 
+function expandCompact() {
+	var table = document.getElementsByTagName("table")[0];
+	if (!table.classList.contains("compact"))
+		return;
+	var sourceLine = 0, lastOffset = null, assemblyLine = 0;
+	table.querySelectorAll("tr").forEach(function(row) {
+		var th = row.firstChild;
+		if (row.classList.contains("sl")) {
+			sourceLine++;
+			th.innerHTML = '<a name="L_'+sourceLine+'" href="#L_'+sourceLine+'" data-l="'+sourceLine+'"></a>';
+		} else {
+			var offset = th.textContent;
+			assemblyLine = offset == lastOffset ? assemblyLine + 1 : 1;
+			lastOffset = offset;
+			th.innerHTML = '<a name="A_'+offset+'_'+assemblyLine+'" href="#A_'+offset+'_'+assemblyLine+'">'+offset+'</a>';
+		}
+	});
+	table.querySelectorAll("tr.sl td sub").forEach(function(sub) {
+		var ref = parseInt(sub.textContent);
+		sub.innerHTML = '<s><u></u><b></b></s><a name="#AR_'+ref+'" href="#AR_'+ref+'">'+String.fromCharCode(97 + ref % 26)+'</a>';
+	});
+	table.querySelectorAll("tr.al td sup").forEach(function(sup) {
+		var parts = sup.textContent.split(":");
+		if (parts[0] != "")
+			sup.title = parts[0];
+		sup.innerHTML = parts[1] == "" ? " " : '<a href="#AR_'+parts[1]+'">'+String.fromCharCode(97 + parseInt(parts[1]) % 26)+'</a>';
+	});
+	var target = document.getElementsByName(window.location.hash.substring(1))[0];
+	if (target)
+		target.scrollIntoView();
+}
+
 window.onhashchange = function() {
 	if (window.location.hash.startsWith("#L_") || window.location.hash.startsWith("#A_"))
 		updateLines();
 };
 
 window.onload = function() {
+	expandCompact();
 	if (document.getElementsByTagName("table")[0].classList.contains("assemblypresent")) {
 		document.getElementById("togglebuttons").innerHTML='<label><input type="radio" checked="checked" name="asm" value="showsource" onclick="toggleasm(this)"> Source</label> <label><input id="asmradio" type="radio" name="asm" value="showassembly" onclick="toggleasm(this)"> Assembly</label> <label><input id="bothradio" type="radio" name="asm" value="showboth" onclick="toggleasm(this)"> Both</label>';
 	}
@@ -0,0 +1,37 @@
+package oberonxref;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalBuildTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void usagePageFollowsChangedReference() throws Exception {
+		File src = folder.newFolder("src"), out = folder.newFolder("out"), full = folder.newFolder("full");
+		write(src, "Base", "MODULE Base;\n  CONST Max* = 100; Min* = 0;\nEND Base.\n");
+		write(src, "Util", "MODULE Util;\n  IMPORT Base;\n  VAR x*: INTEGER;\nBEGIN x := Base.Max\nEND Util.\n");
+		Main.main(new String[] { "--incremental", src.getPath(), out.getPath() });
+		// Base is unchanged, so its manifest entry is carried over from the first run
+		write(src, "Util", "MODULE Util;\n  IMPORT Base;\n  VAR x*: INTEGER;\nBEGIN x := Base.Min\nEND Util.\n");
+		Main.main(new String[] { "--incremental", src.getPath(), out.getPath() });
+		Main.main(new String[] { src.getPath(), full.getPath() });
+		for (String page : new String[] { "Base-usage.html", "Util.html" }) {
+			assertArrayEquals(page, Files.readAllBytes(new File(full, page).toPath()), Files.readAllBytes(new File(out, page).toPath()));
+		}
+	}
+
+	private static void write(File dir, String module, String source) throws IOException {
+		Files.write(new File(dir, module + ".Mod.txt").toPath(), source.getBytes(StandardCharsets.ISO_8859_1));
+	}
+}